@@ -0,0 +1,198 @@
+package benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request handling hot path: raw request bytes go through the real HttpRouterServerInitializer pipeline
+ * (HttpServerCodec, ChunkedWriteHandler, HttpRouterServerHandler) on an EmbeddedChannel,
+ * and the encoded response is drained and released. Cache misses are read on the benchmark thread: the pipeline
+ * gets a file read pool that runs reads in the caller, so the hop to the pool and back is not measured.
+ *
+ * Run from the project root, the files in public/ are the fixtures:
+ * java -jar benchmarks/target/benchmarks.jar -prof gc
+ *
+ * Server classes are in the default package, which can not be imported, so they are created by reflection
+ * once in setup; the measured code only talks to the channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHandlingBenchmark {
+    private static final String PUBLIC_DIR = "public/";
+
+    private EmbeddedChannel channel;
+    private Object initializer;
+    private Object fileCache;
+    private Method invalidateAll;
+
+    private ByteBuf indexRequest;
+    private ByteBuf imageRequest;
+    private ByteBuf largeImageRequest;
+    private ByteBuf usAsciiRequest;
+    private ByteBuf gzipRequest;
+    private ByteBuf notModifiedRequest;
+    private ByteBuf notFoundRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (!new File(PUBLIC_DIR + "index.html").isFile()) {
+            throw new IllegalStateException("Run benchmarks from the project root, " + PUBLIC_DIR + " is not found");
+        }
+
+        long hashMaxBytes = Class.forName("HttpRouterServer").getField("ZERO_COPY_THRESHOLD_BYTES").getLong(null);
+        Object fileIndex = Class.forName("FileIndex").getConstructor(String.class, long.class)
+                .newInstance(PUBLIC_DIR, hashMaxBytes);
+        fileIndex.getClass().getMethod("scan").invoke(fileIndex);
+
+        Router<?> router = (Router<?>) Class.forName("HttpRouterServer").getMethod("createRouter").invoke(null);
+        Class<?> initializerClass = Class.forName("HttpRouterServerInitializer");
+        // package-private test hooks of the server, the benchmark is in another package
+        Class<?> fileReadsClass = Class.forName("FileReadExecutor");
+        Constructor<?> fileReadsConstructor = fileReadsClass.getDeclaredConstructor(ThreadPoolExecutor.class);
+        fileReadsConstructor.setAccessible(true);
+        Object fileReads = fileReadsConstructor.newInstance(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>()) {
+            @Override
+            public void execute(Runnable read) {
+                read.run(); // EmbeddedChannel may only be used by the benchmark thread
+            }
+        });
+        Constructor<?> initializerConstructor = initializerClass.getDeclaredConstructor(
+                Router.class, fileIndex.getClass(), fileReadsClass);
+        initializerConstructor.setAccessible(true);
+        initializer = initializerConstructor.newInstance(router, fileIndex, fileReads);
+        channel = new EmbeddedChannel((ChannelHandler) initializer);
+
+        Object handler = null;
+        for (java.util.Map.Entry<String, ChannelHandler> entry : channel.pipeline()) {
+            if (entry.getValue().getClass().getName().equals("HttpRouterServerHandler")) {
+                handler = entry.getValue();
+            }
+        }
+        if (handler == null) {
+            throw new IllegalStateException("HttpRouterServerHandler is not in the pipeline");
+        }
+        Field fileCacheField = handler.getClass().getDeclaredField("fileCache");
+        fileCacheField.setAccessible(true);
+        fileCache = fileCacheField.get(handler);
+        invalidateAll = fileCache.getClass().getMethod("invalidateAll");
+
+        Object indexEntry = fileIndex.getClass().getMethod("get", String.class).invoke(fileIndex, PUBLIC_DIR + "index.html");
+        String etag = (String) indexEntry.getClass().getField("etag").get(indexEntry);
+
+        indexRequest = request("/public/index.html", "");
+        imageRequest = request("/public/pngfile.png", "");
+        largeImageRequest = request("/public/image.jpg", "");
+        usAsciiRequest = request("/public/index.html", "Accept-Charset: US-ASCII\r\n");
+        gzipRequest = request("/public/index.html", "Accept-Encoding: gzip, deflate\r\n");
+        notModifiedRequest = request("/public/index.html", "If-None-Match: " + etag + "\r\n");
+        notFoundRequest = request("/public/missing.html", "");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.finish();
+        channel.close();
+        Method shutdown = initializer.getClass().getMethod("shutdown");
+        shutdown.setAccessible(true); // public method of a package-private class
+        shutdown.invoke(initializer);
+    }
+
+    private static ByteBuf request(String uri, String headers) {
+        String request = "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n";
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(request.getBytes(CharsetUtil.US_ASCII)));
+    }
+
+    private long exchange(ByteBuf request) {
+        // a cache miss is read and answered before writeInbound returns
+        channel.writeInbound(request.duplicate());
+        long bytes = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            } else if (msg instanceof FileRegion) {
+                bytes += ((FileRegion) msg).count();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long cacheHitText() {
+        return exchange(indexRequest);
+    }
+
+    @Benchmark
+    public long cacheHitImage() {
+        return exchange(imageRequest);
+    }
+
+    @Benchmark
+    public long cacheMissText() throws Exception {
+        invalidateAll.invoke(fileCache);
+        return exchange(indexRequest);
+    }
+
+    @Benchmark
+    public long cacheMissImage() throws Exception {
+        invalidateAll.invoke(fileCache);
+        return exchange(imageRequest);
+    }
+
+    @Benchmark
+    public long zeroCopyImage() {
+        return exchange(largeImageRequest);
+    }
+
+    @Benchmark
+    public long acceptCharsetUsAscii() {
+        return exchange(usAsciiRequest);
+    }
+
+    @Benchmark
+    public long acceptEncodingGzip() {
+        return exchange(gzipRequest);
+    }
+
+    @Benchmark
+    public long notModified() {
+        return exchange(notModifiedRequest);
+    }
+
+    @Benchmark
+    public long notFound() {
+        return exchange(notFoundRequest);
+    }
+}
@@ -0,0 +1,71 @@
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Admin port: GET /metrics in Prometheus text format. Runs on its own event loop,
+ * so a scrape never delays static file requests.
+ */
+@ChannelHandler.Sharable
+public class AdminHandler extends SimpleChannelInboundHandler<HttpRequest> {
+    public static final String METRICS_PATH = "/metrics";
+    private static final CharSequence PROMETHEUS_TEXT = AsciiString.cached("text/plain; version=0.0.4; charset=utf-8");
+
+    private final ServerMetrics metrics;
+
+    public AdminHandler(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpContent && !(msg instanceof HttpRequest)) {
+            ((HttpContent) msg).release();
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, HttpRequest req) {
+        FullHttpResponse res;
+        if (req.method() != HttpMethod.GET) {
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED,
+                    Unpooled.copiedBuffer("405 Method not allowed", CharsetUtil.UTF_8));
+            res.headers().set(ServerHeaders.CONTENT_TYPE, ServerHeaders.TEXT_PLAIN);
+        } else if (req.uri().equals(METRICS_PATH)) {
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer(metrics.render(), CharsetUtil.UTF_8));
+            res.headers().set(ServerHeaders.CONTENT_TYPE, PROMETHEUS_TEXT);
+        } else {
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND,
+                    Unpooled.copiedBuffer("404 Not Found, try " + METRICS_PATH, CharsetUtil.UTF_8));
+            res.headers().set(ServerHeaders.CONTENT_TYPE, ServerHeaders.TEXT_PLAIN);
+        }
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
+
+        if (HttpUtil.isKeepAlive(req)) {
+            res.headers().set(ServerHeaders.CONNECTION, ServerHeaders.KEEP_ALIVE);
+            ctx.writeAndFlush(res);
+        } else {
+            ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+}
@@ -0,0 +1,141 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Combo endpoint, GET /bundle?files=a.js,b.js: js or css files of the public directory one after another
+ * in one response, so a page loads its scripts and styles with one request each.
+ *
+ * A bundle is cached like a file (CachedFile.bundle), under KEY_PREFIX + the files parameter, and has a version
+ * made from the versions of its files: ETag from their ETags, Last-Modified of the newest one. When one of them
+ * changes the bundle gets a new version and its memory cache entry is dropped.
+ */
+public final class Bundles {
+    public static final String KEY_PREFIX = "bundle?files=";
+
+    // after every file, a file that ends without a newline does not run into the next one
+    public static final ByteBuf SEPARATOR = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(1).writeBytes("\n".getBytes(CharsetUtil.US_ASCII)));
+
+    public static final class Bundle {
+        /** memory cache key */
+        public final String key;
+        /** version of the bundle, Content-Type by the type of its files */
+        public final FileIndex.Entry meta;
+        /** versions of the files it is made of, in order */
+        public final List<FileIndex.Entry> files;
+
+        Bundle(String key, FileIndex.Entry meta, List<FileIndex.Entry> files) {
+            this.key = key;
+            this.meta = meta;
+            this.files = files;
+        }
+
+        boolean isCurrent(FileIndex fileIndex) {
+            for (FileIndex.Entry file : files) {
+                if (fileIndex.get(file.pathString) != file) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final String publicDir;
+    private final FileIndex fileIndex;
+    private final int maxFiles;
+    private final int maxBundles;
+    private final ConcurrentHashMap<String, Bundle> bundles = new ConcurrentHashMap<String, Bundle>();
+
+    /**
+     * @param maxFiles files in one bundle
+     * @param maxBundles different file lists remembered, every list a client makes up is a new one
+     */
+    public Bundles(String publicDir, FileIndex fileIndex, int maxFiles, int maxBundles) {
+        this.publicDir = publicDir;
+        this.fileIndex = fileIndex;
+        this.maxFiles = maxFiles;
+        this.maxBundles = maxBundles;
+    }
+
+    /**
+     * @param key KEY_PREFIX + comma separated file names
+     * @return bundle of the current versions of the files, null if a name is not an indexed js or css file,
+     * the files are not of one type or there are more than maxFiles
+     */
+    public Bundle get(String key) {
+        Bundle bundle = bundles.get(key);
+        if (bundle != null && bundle.isCurrent(fileIndex)) {
+            return bundle;
+        }
+        bundle = create(key);
+        if (bundle == null) {
+            bundles.remove(key);
+            return null;
+        }
+        if (bundles.size() >= maxBundles) {
+            bundles.clear(); // cache entries of forgotten bundles just age out
+        }
+        bundles.put(key, bundle);
+        return bundle;
+    }
+
+    /**
+     * Forgets bundles with this file, called by the FileIndex listener.
+     * @return memory cache keys of the bundles to invalidate
+     */
+    public List<String> fileChanged(String pathString) {
+        List<String> keys = new ArrayList<String>(0);
+        for (Map.Entry<String, Bundle> entry : bundles.entrySet()) {
+            for (FileIndex.Entry file : entry.getValue().files) {
+                if (file.pathString.equals(pathString)) {
+                    bundles.remove(entry.getKey(), entry.getValue());
+                    keys.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return keys;
+    }
+
+    private Bundle create(String key) {
+        String[] names = key.substring(KEY_PREFIX.length()).split(",", -1);
+        if (names.length > maxFiles) {
+            return null;
+        }
+        List<FileIndex.Entry> files = new ArrayList<FileIndex.Entry>(names.length);
+        String extension = null;
+        CRC32 etags = new CRC32();
+        long size = 0;
+        long lastModified = 0;
+        for (String name : names) {
+            if (name.isEmpty() || name.indexOf('/') >= 0 || StaticRoutes.kindOf(name) != StaticRoutes.Kind.TEXT) {
+                return null;
+            }
+            String fileExtension = HttpRouterServerHandler.getExtension(name);
+            if (extension != null && !extension.equals(fileExtension)) {
+                return null; // one Content-Type per response
+            }
+            extension = fileExtension;
+            FileIndex.Entry file = fileIndex.get(publicDir + name);
+            if (file == null) {
+                return null;
+            }
+            files.add(file);
+            etags.update(file.etag.getBytes(CharsetUtil.US_ASCII));
+            size += file.size + SEPARATOR.readableBytes();
+            lastModified = Math.max(lastModified, file.lastModified);
+        }
+        // key ends with the last file name, so Content-Type and compressibility go by its extension
+        FileIndex.Entry meta = new FileIndex.Entry(key, size, lastModified, etags.getValue(),
+                Collections.<String>emptyList(), null);
+        return new Bundle(key, meta, Collections.unmodifiableList(files));
+    }
+}
@@ -0,0 +1,213 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One range of a Range request, and Range / If-Range handling: 206 Partial Content,
+ * multipart/byteranges for several ranges and 416 for unsatisfiable ones.
+ */
+public final class ByteRange {
+    public static final String BOUNDARY = "NETTY_SERVER_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private static final String CLOSE_DELIMITER = "\r\n--" + BOUNDARY + "--\r\n";
+    public static final String MULTIPART_CONTENT_TYPE = "multipart/byteranges; boundary=" + BOUNDARY;
+    // more ranges than this are served as the whole file, so a request can not make us build thousands of parts
+    public static final int MAX_RANGES = 16;
+    // ranges closer than this are sent as one part, a gap this small costs less than the headers of another part
+    private static final long COALESCE_GAP = 80;
+
+    public final long start;
+    public final long end; // inclusive
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String contentRange(long fileLength) {
+        return "bytes " + start + '-' + end + '/' + fileLength;
+    }
+
+    /**
+     * Parses the Range header of the request against a file of fileLength bytes.
+     * @param validators headers of the full response, ETag and Last-Modified are compared with If-Range
+     * @return null if the whole file should be sent (no Range, unsupported unit, syntax error,
+     *         If-Range does not match, ranges cover the whole file), empty list if no range is satisfiable (416),
+     *         otherwise the ranges, sorted, overlapping and nearby ones coalesced (RFC 7233 4.1, 6.1),
+     *         so bytes=0-,0-,0- can not make us send the file many times
+     */
+    public static List<ByteRange> parse(HttpRequest req, long fileLength, HttpHeaders validators) {
+        String range = req.headers().get(HttpHeaderNames.RANGE);
+        if (range == null || !range.startsWith("bytes=")) {
+            return null;
+        }
+
+        String ifRange = req.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(validators.get(HttpHeaderNames.ETAG))
+                && !ifRange.equals(validators.get(HttpHeaderNames.LAST_MODIFIED))) {
+            return null;
+        }
+
+        String[] specs = range.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // suffix range: last N bytes
+                    long suffix = digits(spec.substring(1));
+                    start = Math.max(0, fileLength - suffix);
+                    end = fileLength - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = digits(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = fileLength - 1;
+                    } else {
+                        long last = digits(spec.substring(dash + 1));
+                        if (last < start) {
+                            return null; // last-byte-pos less than first-byte-pos is a syntax error
+                        }
+                        end = Math.min(last, fileLength - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < fileLength && start <= end) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        if (ranges.isEmpty()) {
+            return Collections.<ByteRange>emptyList();
+        }
+        ranges = coalesce(ranges);
+        if (ranges.size() == 1 && ranges.get(0).length() == fileLength) {
+            return null;
+        }
+        return ranges;
+    }
+
+    // 1*DIGIT, Long.parseLong alone takes a sign too: bytes=--5 or bytes=+0-9 are not valid, they are ignored
+    private static long digits(String s) {
+        if (s.isEmpty() || s.charAt(0) < '0' || s.charAt(0) > '9') {
+            throw new NumberFormatException("Not a byte position: " + s);
+        }
+        return Long.parseLong(s);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() == 1) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange a, ByteRange b) {
+                return Long.compare(a.start, b.start);
+            }
+        });
+        List<ByteRange> coalesced = new ArrayList<ByteRange>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1 + COALESCE_GAP) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
+    }
+
+    public static FullHttpResponse notSatisfiable(long fileLength) {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, Unpooled.EMPTY_BUFFER
+        );
+        res.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + fileLength);
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        return res;
+    }
+
+    /**
+     * 206 response with slices of the body, the body itself is not copied.
+     * @param headers headers of the full response, Content-Length is replaced
+     */
+    public static FullHttpResponse partialResponse(ByteBuf body, HttpHeaders headers, List<ByteRange> ranges) {
+        long fileLength = body.readableBytes();
+        FullHttpResponse res;
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT,
+                    body.retainedSlice(body.readerIndex() + (int) range.start, (int) range.length()));
+            res.headers().set(headers);
+            res.headers().set(HttpHeaderNames.CONTENT_RANGE, range.contentRange(fileLength));
+        } else {
+            String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+            CompositeByteBuf multipart = Unpooled.compositeBuffer(ranges.size() * 2 + 1);
+            for (ByteRange range : ranges) {
+                multipart.addComponent(true, partHeader(contentType, range, fileLength));
+                multipart.addComponent(true, body.retainedSlice(body.readerIndex() + (int) range.start, (int) range.length()));
+            }
+            multipart.addComponent(true, closeDelimiter());
+
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, multipart);
+            res.headers().set(headers);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, MULTIPART_CONTENT_TYPE);
+        }
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+        return res;
+    }
+
+    /** Length of the multipart/byteranges body for the ranges, to set Content-Length before streaming it. */
+    public static long multipartLength(String contentType, List<ByteRange> ranges, long fileLength) {
+        long length = CLOSE_DELIMITER.length();
+        for (ByteRange range : ranges) {
+            length += partHeaderString(contentType, range, fileLength).length() + range.length();
+        }
+        return length;
+    }
+
+    public static ByteBuf partHeader(String contentType, ByteRange range, long fileLength) {
+        return Unpooled.copiedBuffer(partHeaderString(contentType, range, fileLength), CharsetUtil.US_ASCII);
+    }
+
+    public static ByteBuf closeDelimiter() {
+        return Unpooled.copiedBuffer(CLOSE_DELIMITER, CharsetUtil.US_ASCII);
+    }
+
+    private static String partHeaderString(String contentType, ByteRange range, long fileLength) {
+        return "\r\n--" + BOUNDARY + "\r\n"
+                + HttpHeaderNames.CONTENT_TYPE + ": " + contentType + "\r\n"
+                + HttpHeaderNames.CONTENT_RANGE + ": " + range.contentRange(fileLength) + "\r\n\r\n";
+    }
+}
@@ -0,0 +1,332 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory cache entry: file body encoded once into pooled direct buffers, one per variant (charset and
+ * content encoding), with the response headers that do not change between requests.
+ * Responses get a retainedDuplicate() of the shared body, so a cache hit copies and encodes nothing.
+ *
+ * With MEMORY_MAPPED files as they are on disk (identity and pre-built .gz/.br) are mapped read-only instead
+ * of copied, their pages live in the OS page cache, shared with other processes and not counted in size().
+ */
+public class CachedFile extends AbstractReferenceCounted {
+    public static final boolean MEMORY_MAPPED = HttpRouterServer.MEMORY_MAPPED_STORE;
+
+    private final FileIndex.Entry meta;
+    private final Map<String, Variant> variants;
+    private final Variant identity;
+    private final List<String> encodings;
+    private final long size;
+
+    private CachedFile(FileIndex.Entry meta, Map<String, Variant> variants, Variant identity, List<String> encodings) {
+        this.meta = meta;
+        this.variants = variants;
+        this.identity = identity;
+        this.encodings = encodings;
+        long size = 0;
+        for (Variant variant : variants.values()) {
+            if (!variant.borrowed) {
+                size += variant.body.capacity();
+            }
+        }
+        this.size = size;
+    }
+
+    /**
+     * @param meta file from the index, null if it is not there
+     * @param charsetVariants also encode the file in US-ASCII, for text files served by Accept-Charset
+     * @return loaded file, or null if file not found
+     */
+    public static CachedFile load(FileIndex.Entry meta, boolean charsetVariants) throws IOException {
+        return load(meta, charsetVariants, null);
+    }
+
+    /**
+     * @param body file as it is on disk, e.g. from a peer (PeerCache); null to read it from disk
+     */
+    public static CachedFile load(FileIndex.Entry meta, boolean charsetVariants, ByteBuf body) throws IOException {
+        if (meta == null) {
+            if (body != null) {
+                body.release();
+            }
+            return null;
+        }
+        String pathString = meta.pathString;
+        boolean mapped = body == null && MEMORY_MAPPED;
+        if (body == null) {
+            body = readFile(pathString);
+        }
+        if (body == null) {
+            return null;
+        }
+
+        Map<String, Variant> variants = new HashMap<String, Variant>();
+        List<String> encodings = new ArrayList<String>(3);
+        boolean compressible = ContentEncoding.isCompressible(pathString);
+        ByteBuf asciiBody = null;
+        try {
+            Variant identity = new Variant(body, mapped, meta, null, null, compressible);
+            variants.put(variantKey(CharsetUtil.UTF_8, null), identity);
+            if (compressible) {
+                addEncodedVariants(variants, encodings, meta, CharsetUtil.UTF_8, body);
+            }
+
+            if (charsetVariants) {
+                byte[] ascii = body.toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.US_ASCII);
+                asciiBody = PooledByteBufAllocator.DEFAULT.directBuffer(ascii.length).writeBytes(ascii);
+                variants.put(variantKey(CharsetUtil.US_ASCII, null), new Variant(asciiBody, false, meta, CharsetUtil.US_ASCII, null, compressible));
+                if (compressible) {
+                    addEncodedVariants(variants, encodings, meta, CharsetUtil.US_ASCII, asciiBody);
+                }
+            }
+            return new CachedFile(meta, variants, identity, encodings);
+        } catch (IOException e) {
+            releaseBodies(variants, body, asciiBody);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseBodies(variants, body, asciiBody);
+            throw e;
+        }
+    }
+
+    /**
+     * Files one after another, each followed by separator. The body is a CompositeByteBuf of the cached bodies
+     * of the files, nothing is copied; compressed variants are made from it once, like for a file.
+     * @param meta version of the bundle, see Bundles
+     * @param files loaded files, still owned by the caller
+     */
+    public static CachedFile bundle(FileIndex.Entry meta, List<CachedFile> files, ByteBuf separator) throws IOException {
+        CompositeByteBuf body = PooledByteBufAllocator.DEFAULT.compositeDirectBuffer(files.size() * 2);
+        for (CachedFile file : files) {
+            body.addComponent(true, file.identity.body.retainedDuplicate());
+            body.addComponent(true, separator.retainedDuplicate());
+        }
+
+        Map<String, Variant> variants = new HashMap<String, Variant>();
+        List<String> encodings = new ArrayList<String>(2);
+        boolean compressible = ContentEncoding.isCompressible(meta.pathString);
+        try {
+            // the files are cached on their own, their bytes are weighed there
+            Variant identity = new Variant(body, true, meta, null, null, compressible);
+            variants.put(variantKey(CharsetUtil.UTF_8, null), identity);
+            if (compressible) {
+                addEncodedVariants(variants, encodings, meta, CharsetUtil.UTF_8, body);
+            }
+            return new CachedFile(meta, variants, identity, encodings);
+        } catch (IOException e) {
+            releaseBodies(variants, body);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseBodies(variants, body);
+            throw e;
+        }
+    }
+
+    // after a failed load: bodies of the variants made so far, and the given bodies that are in none of them
+    private static void releaseBodies(Map<String, Variant> variants, ByteBuf... bodies) {
+        for (ByteBuf body : bodies) {
+            boolean inVariant = false;
+            for (Variant variant : variants.values()) {
+                inVariant |= variant.body == body;
+            }
+            if (body != null && !inVariant) {
+                body.release();
+            }
+        }
+        for (Variant variant : variants.values()) {
+            variant.body.release();
+        }
+    }
+
+    private static void addEncodedVariants(Map<String, Variant> variants, List<String> encodings,
+                                           FileIndex.Entry meta, Charset charset, ByteBuf body) throws IOException {
+        // pre-built .br/.gz files hold the file as it is on disk, so they are used only for its own charset
+        List<String> siblings = charset == CharsetUtil.UTF_8 ? meta.precompressed : Collections.<String>emptyList();
+
+        for (String encoding : new String[]{ContentEncoding.BR, ContentEncoding.GZIP, ContentEncoding.DEFLATE}) {
+            ByteBuf encoded;
+            boolean mapped = false;
+            if (siblings.contains(encoding)) {
+                encoded = readFile(ContentEncoding.siblingPath(meta.pathString, encoding));
+                mapped = MEMORY_MAPPED;
+            } else if (!encoding.equals(ContentEncoding.BR)) {
+                encoded = ContentEncoding.compress(body, encoding);
+            } else {
+                continue;
+            }
+            // not worth it if compression did not help
+            if (encoded == null || encoded.readableBytes() >= body.readableBytes()) {
+                if (encoded != null) {
+                    encoded.release();
+                }
+                continue;
+            }
+            Variant variant;
+            try {
+                variant = new Variant(encoded, mapped, meta, charset == CharsetUtil.UTF_8 ? null : charset, encoding, true);
+            } catch (RuntimeException e) {
+                encoded.release();
+                throw e;
+            }
+            variants.put(variantKey(charset, encoding), variant);
+            if (!encodings.contains(encoding)) {
+                encodings.add(encoding);
+            }
+        }
+    }
+
+    private static String variantKey(Charset charset, String encoding) {
+        return encoding == null ? charset.name() : charset.name() + ';' + encoding;
+    }
+
+    private static ByteBuf readFile(String pathString) throws IOException {
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(Paths.get(pathString), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (MEMORY_MAPPED) {
+                // stays valid after the channel is closed, unmapped when the buffer is garbage collected
+                MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+                mapped.load(); // fault pages in now, on the file read pool, not on the first request
+                return Unpooled.wrappedBuffer(mapped);
+            }
+            int length = (int) fileChannel.size();
+            ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+            try {
+                while (body.isWritable() && body.writeBytes(fileChannel, body.writableBytes()) >= 0) {
+                    // read until the buffer is full or EOF
+                }
+            } catch (IOException e) {
+                body.release();
+                throw e;
+            } catch (RuntimeException e) {
+                body.release();
+                throw e;
+            }
+            return body;
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Variant for the charset and Accept-Encoding header value.
+     * Falls back to identity encoding, and to the file as it is on disk if there is no such charset variant.
+     */
+    public Variant variant(Charset charset, String acceptEncoding) {
+        String encoding = ContentEncoding.negotiate(acceptEncoding, encodings);
+        Variant variant = variants.get(variantKey(charset, encoding));
+        if (variant == null && encoding != null) {
+            variant = variants.get(variantKey(charset, null));
+        }
+        return variant != null ? variant : identity;
+    }
+
+    /** File as it is on disk, for a peer; release it after use. */
+    public ByteBuf identityBody() {
+        return identity.body.retainedDuplicate();
+    }
+
+    /** Version of the file this entry was loaded for. */
+    public FileIndex.Entry meta() {
+        return meta;
+    }
+
+    /**
+     * Bytes held off-heap by all variants except borrowed ones (mapped files, the body of a bundle made of
+     * the cached bodies of its files), used as cache weight; a bundle weighs its compressed variants only.
+     */
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public CachedFile touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        for (Variant variant : variants.values()) {
+            variant.body.release();
+        }
+    }
+
+    public static final class Variant {
+        private final ByteBuf body;
+        private final boolean borrowed;
+        private final HttpHeaders headers = new DefaultHttpHeaders();
+
+        /**
+         * @param borrowed body is not memory of this entry: a mapped file, or cached bodies of other entries
+         * @param charset charset the file was re-encoded to, null if it is as on disk
+         */
+        Variant(ByteBuf body, boolean borrowed, FileIndex.Entry meta, Charset charset, String encoding, boolean compressible) {
+            this.body = body;
+            this.borrowed = borrowed;
+            meta.setHeaders(headers);
+            if (charset != null || encoding != null) {
+                String variant = charset == null ? encoding
+                        : encoding == null ? charset.name().toLowerCase() : charset.name().toLowerCase() + '-' + encoding;
+                headers.set(ServerHeaders.ETAG, AsciiString.cached(meta.etag(variant)));
+            }
+            headers.set(ServerHeaders.CONTENT_LENGTH, AsciiString.cached(String.valueOf(body.readableBytes())));
+            headers.set(ServerHeaders.ACCEPT_RANGES, ServerHeaders.BYTES);
+            if (encoding != null) {
+                headers.set(ServerHeaders.CONTENT_ENCODING, AsciiString.cached(encoding));
+            }
+            if (compressible) {
+                headers.set(ServerHeaders.VARY, ServerHeaders.ACCEPT_ENCODING);
+            }
+        }
+
+        /** New 200 response sharing the cached body; Date and cache headers are left to the caller. */
+        public FullHttpResponse newResponse() {
+            FullHttpResponse res = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body.retainedDuplicate()
+            );
+            res.headers().set(headers);
+            return res;
+        }
+
+        /** New 206 response with slices of the cached body. */
+        public FullHttpResponse newPartialResponse(List<ByteRange> ranges) {
+            return ByteRange.partialResponse(body, headers, ranges);
+        }
+
+        public long length() {
+            return body.readableBytes();
+        }
+
+        public HttpHeaders headers() {
+            return headers;
+        }
+    }
+}
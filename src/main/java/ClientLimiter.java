@@ -0,0 +1,242 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per remote address limits: concurrent connections and request rate (token bucket).
+ * State is a ConcurrentHashMap of clients with atomics inside, no locks, so event loops do not wait for each other;
+ * a client with no connections and a full bucket is swept from the map on the global executor.
+ *
+ * The connection cap is checked first in the pipeline and a rejected connection gets prepared bytes
+ * of a 503 before the codec; the rate is checked per request by HttpRouterServerHandler with tryAcquire.
+ */
+public final class ClientLimiter {
+    private static final AttributeKey<Client> CLIENT = AttributeKey.valueOf("client");
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // whole HTTP/1.1 response, encoded once; the connection is closed after it
+    private static final ByteBuf TOO_MANY_CONNECTIONS = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes((
+            "HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 24\r\n"
+            + "Retry-After: 1\r\n"
+            + "Connection: close\r\n"
+            + "\r\n"
+            + "503 Too many connections").getBytes(CharsetUtil.US_ASCII)));
+
+    private final int maxConnections;
+    private final long intervalNanos;    // one token per interval
+    private final long burstNanos;       // bucket size, as time
+    private final boolean exemptLoopback;
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<InetAddress, Client>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final ChannelHandler connectionLimiter = new ConnectionLimiter();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder limitedRequests = new LongAdder();
+
+    /**
+     * @param requestsPerSecond tokens added per second
+     * @param burst bucket size, requests a client can send at once after a quiet period
+     * @param exemptLoopback no limits for 127.0.0.1/::1, e.g. a local proxy or the load generator
+     */
+    public ClientLimiter(int maxConnections, int requestsPerSecond, int burst, boolean exemptLoopback) {
+        this.maxConnections = maxConnections;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        this.burstNanos = intervalNanos * burst;
+        this.exemptLoopback = exemptLoopback;
+    }
+
+    /**
+     * Sharable, right after IdleStateHandler: connection cap per address, closes connections
+     * the IdleStateHandler reports idle.
+     */
+    public ChannelHandler connectionLimiter() {
+        return connectionLimiter;
+    }
+
+    /**
+     * Takes a token of the client of this connection or HTTP/2 stream.
+     * @return false if the request has to be answered with 429
+     */
+    public static boolean tryAcquire(Channel channel) {
+        Channel connection = channel instanceof Http2StreamChannel ? channel.parent() : channel;
+        Client client = connection.attr(CLIENT).get();
+        if (client == null) {
+            return true; // exempt, or not a TCP connection (EmbeddedChannel)
+        }
+        if (client.tryAcquire(System.nanoTime())) {
+            return true;
+        }
+        client.limiter.limitedRequests.increment();
+        return false;
+    }
+
+    public long rejectedConnectionCount() {
+        return rejectedConnections.sum();
+    }
+
+    public long limitedRequestCount() {
+        return limitedRequests.sum();
+    }
+
+    public int clientCount() {
+        return clients.size();
+    }
+
+    // null if the address is at its connection cap
+    private Client connect(InetAddress address) {
+        while (true) {
+            Client client = clients.get(address);
+            if (client == null) {
+                Client created = new Client(this);
+                client = clients.putIfAbsent(address, created);
+                if (client == null) {
+                    client = created;
+                }
+            }
+            int result = client.connect(maxConnections);
+            if (result > 0) {
+                return client;
+            }
+            if (result == 0) {
+                return null;
+            }
+            // swept meanwhile, the next lookup gets a new one
+            clients.remove(address, client);
+        }
+    }
+
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        GlobalEventExecutor.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (Map.Entry<InetAddress, Client> entry : clients.entrySet()) {
+                    if (entry.getValue().retireIfIdle(now)) {
+                        clients.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * One remote address. Token bucket as GCRA: instead of a token count and refill time, one theoretical arrival
+     * time that every request moves by one interval; over the limit when it runs further ahead of now than the burst.
+     * One CAS per request.
+     */
+    private static final class Client {
+        final ClientLimiter limiter;
+        final AtomicInteger connections = new AtomicInteger(); // -1 when swept
+        final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+        Client(ClientLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        /** @return 1 if connected, 0 if at the cap, -1 if this client was swept */
+        int connect(int max) {
+            while (true) {
+                int count = connections.get();
+                if (count < 0) {
+                    return -1;
+                }
+                if (count >= max) {
+                    return 0;
+                }
+                if (connections.compareAndSet(count, count + 1)) {
+                    return 1;
+                }
+            }
+        }
+
+        void disconnect() {
+            connections.decrementAndGet();
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = tat.get();
+                long next = (current - now > 0 ? current : now) + limiter.intervalNanos;
+                if (next - now > limiter.burstNanos) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        // no connections and a full bucket: nothing to remember
+        boolean retireIfIdle(long now) {
+            return tat.get() - now <= 0 && connections.compareAndSet(0, -1);
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private final class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            SocketAddress remote = ctx.channel().remoteAddress();
+            if (remote instanceof InetSocketAddress) {
+                InetAddress address = ((InetSocketAddress) remote).getAddress();
+                if (!(exemptLoopback && address.isLoopbackAddress())) {
+                    long now = System.nanoTime();
+                    sweepIfDue(now);
+                    Client client = connect(address);
+                    if (client == null) {
+                        rejectedConnections.increment();
+                        ctx.channel().config().setAutoRead(false);
+                        ctx.writeAndFlush(TOO_MANY_CONNECTIONS.duplicate()).addListener(ChannelFutureListener.CLOSE);
+                        return;
+                    }
+                    ctx.channel().attr(CLIENT).set(client);
+                }
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Client client = ctx.channel().attr(CLIENT).getAndSet(null);
+            if (client != null) {
+                client.disconnect();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                // nothing read or written for IDLE_TIMEOUT_SECONDS: idle keep-alive, or a client that stopped reading
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+}
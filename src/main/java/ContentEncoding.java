@@ -0,0 +1,139 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Accept-Encoding negotiation and compression of cached bodies.
+ * Compression runs once when a file is loaded into memory cache, never per request.
+ * Brotli has no encoder in the JDK, so br is served only from pre-built .br files next to the original.
+ */
+public final class ContentEncoding {
+    public static final String IDENTITY = "identity";
+    public static final String BR = "br";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // server preference when client accepts several encodings with the same q
+    private static final String[] PREFERRED = {BR, GZIP, DEFLATE};
+    private static final String[] NOT_COMPRESSIBLE = {"jpg", "jpeg", "png", "gif", "ico", "gz", "br", "zip"};
+
+    private ContentEncoding() {
+    }
+
+    public static boolean isCompressible(String pathString) {
+        String extension = pathString.substring(pathString.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        for (String notCompressible : NOT_COMPRESSIBLE) {
+            if (notCompressible.equals(extension)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Pre-built sibling file for encoding: public/app.js -> public/app.js.gz */
+    public static String siblingPath(String pathString, String encoding) {
+        if (GZIP.equals(encoding)) {
+            return pathString + ".gz";
+        }
+        if (BR.equals(encoding)) {
+            return pathString + ".br";
+        }
+        return null;
+    }
+
+    /**
+     * Picks the encoding to respond with.
+     * @param acceptEncoding Accept-Encoding header value, may be null
+     * @param available encodings the server has for this file, identity is always available
+     * @return one of available, or null for identity
+     */
+    public static String negotiate(String acceptEncoding, Collection<String> available) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty() || available.isEmpty()) {
+            return null;
+        }
+        String best = null;
+        float bestQ = 0;
+        for (String encoding : PREFERRED) {
+            if (!available.contains(encoding)) {
+                continue;
+            }
+            float q = qValue(acceptEncoding, encoding);
+            if (q > bestQ) {
+                best = encoding;
+                bestQ = q;
+            }
+        }
+        // identity wins if client prefers it explicitly
+        if (best != null && qValue(acceptEncoding, IDENTITY) > bestQ) {
+            return null;
+        }
+        return best;
+    }
+
+    private static float qValue(String acceptEncoding, String encoding) {
+        float wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            int semicolon = part.indexOf(';');
+            String coding = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+            float q = 1;
+            if (semicolon >= 0) {
+                String param = part.substring(semicolon + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(encoding)) {
+                return q;
+            }
+            if (coding.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return IDENTITY.equals(encoding) && wildcard == 0 ? 0.001f : wildcard;
+    }
+
+    public static ByteBuf compress(ByteBuf body, String encoding) throws IOException {
+        ByteBuf compressed = PooledByteBufAllocator.DEFAULT.directBuffer(body.readableBytes() / 2 + 64);
+        Deflater deflater = null;
+        try {
+            OutputStream out;
+            if (GZIP.equals(encoding)) {
+                out = new GZIPOutputStream(new ByteBufOutputStream(compressed), 8192) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                };
+            } else if (DEFLATE.equals(encoding)) {
+                deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                out = new DeflaterOutputStream(new ByteBufOutputStream(compressed), deflater, 8192);
+            } else {
+                throw new IllegalArgumentException("Can not compress to " + encoding);
+            }
+            body.getBytes(body.readerIndex(), out, body.readableBytes());
+            out.close();
+            return compressed;
+        } catch (IOException e) {
+            compressed.release();
+            throw e;
+        } catch (RuntimeException e) {
+            compressed.release();
+            throw e;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+}
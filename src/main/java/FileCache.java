@@ -0,0 +1,312 @@
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory cache for file contents, shared by all worker threads.
+ * Size is bounded by total weight in bytes, entries expire after expiresInMs,
+ * and concurrent misses on the same key wait for one load instead of reading the file N times.
+ *
+ * A hit takes no lock: entries are in a ConcurrentHashMap and a hit only stamps the entry with its access time.
+ * Eviction is approximate LRU: a put over the limit sorts the entries by that stamp and evicts the least recently
+ * used ones down to 1/EVICTION_BATCH under the limit, so the sort is paid once per batch of puts, not on every one.
+ *
+ * ReferenceCounted values are owned by the cache while cached and released on eviction;
+ * get() and getIfPresent() return them retained, so the caller must release them after use.
+ */
+public class FileCache<V> {
+
+    public interface Loader<V> {
+        /** @return loaded value, or null if there is nothing to cache (file not found) */
+        V load(String key) throws IOException;
+    }
+
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private static final int EVICTION_BATCH = 16;
+    // access stamps closer than this are not rewritten, hot entries are not written to on every hit
+    private static final long ACCESS_STAMP_NANOS = 1000000;
+
+    private volatile long maxBytes;
+    private volatile long expiresInMs;
+    private final Weigher<V> weigher;
+
+    // an entry is released by the one thread whose remove or put took it out of the map
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+    private final ConcurrentHashMap<String, Load> loading = new ConcurrentHashMap<String, Load>();
+    private final AtomicLong bytesResident = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileCache(long maxBytes, long expiresInMs, Weigher<V> weigher) {
+        this.maxBytes = maxBytes;
+        this.expiresInMs = expiresInMs;
+        this.weigher = weigher;
+    }
+
+    public V getIfPresent(String key) {
+        V value = lookup(key);
+        if (value != null) {
+            hits.increment();
+        }
+        return value;
+    }
+
+    private V lookup(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.gotInCache <= System.currentTimeMillis() - expiresInMs) {
+            // cache got expired
+            if (removeEntry(key, entry)) {
+                evictions.increment();
+            }
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - entry.lastAccess > ACCESS_STAMP_NANOS) {
+            entry.lastAccess = now;
+        }
+        try {
+            return retain(entry.value);
+        } catch (IllegalReferenceCountException e) {
+            return null; // evicted and released meanwhile
+        }
+    }
+
+    public V get(final String key, final Loader<V> loader) throws IOException {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        misses.increment();
+
+        Load load;
+        boolean leader;
+        while (true) {
+            Load created = new Load(key, loader);
+            load = loading.putIfAbsent(key, created);
+            if (load == null) {
+                load = created;
+                leader = true;
+                break;
+            }
+            if (load.join()) {
+                leader = false;
+                break;
+            }
+            // that load has just finished, its value is cached unless it was null
+            value = lookup(key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        if (leader) {
+            load.task.run();
+        }
+
+        try {
+            return load.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to load " + key, cause);
+        }
+    }
+
+    public void put(String key, V value) {
+        long weight = weigher.weigh(value);
+        if (weight > maxBytes) {
+            return; // would evict everything else and still not fit
+        }
+        bytesResident.addAndGet(weight);
+        released(entries.put(key, new Entry<V>(retain(value), weight)));
+        evictOverLimit();
+    }
+
+    private void evictOverLimit() {
+        if (bytesResident.get() <= maxBytes) {
+            return;
+        }
+        synchronized (evictionLock) {
+            long limit = maxBytes;
+            if (bytesResident.get() <= limit) {
+                return; // another put has evicted already
+            }
+            List<Victim<V>> byAccess = new ArrayList<Victim<V>>(entries.size());
+            for (Map.Entry<String, Entry<V>> entry : entries.entrySet()) {
+                byAccess.add(new Victim<V>(entry.getKey(), entry.getValue()));
+            }
+            Collections.sort(byAccess, Victim.LEAST_RECENT_FIRST);
+            long target = limit - limit / EVICTION_BATCH;
+            for (int i = 0; i < byAccess.size() && bytesResident.get() > target; i++) {
+                Victim<V> victim = byAccess.get(i);
+                if (removeEntry(victim.key, victim.entry)) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /** New limits for the running cache, entries over the new size are evicted at once. */
+    public void setLimits(long maxBytes, long expiresInMs) {
+        this.maxBytes = maxBytes;
+        this.expiresInMs = expiresInMs;
+        evictOverLimit();
+    }
+
+    public void invalidate(String key) {
+        released(entries.remove(key));
+    }
+
+    public void invalidateAll() {
+        for (Map.Entry<String, Entry<V>> entry : entries.entrySet()) {
+            removeEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private boolean removeEntry(String key, Entry<V> entry) {
+        if (!entries.remove(key, entry)) {
+            return false;
+        }
+        released(entry);
+        return true;
+    }
+
+    private void released(Entry<V> removed) {
+        if (removed != null) {
+            bytesResident.addAndGet(-removed.weight);
+            ReferenceCountUtil.release(removed.value);
+        }
+    }
+
+    private static <V> V retain(V value) {
+        if (value instanceof ReferenceCounted) {
+            ((ReferenceCounted) value).retain();
+        }
+        return value;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public long bytesResident() {
+        return bytesResident.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+        final long gotInCache;
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+            this.gotInCache = System.currentTimeMillis();
+        }
+    }
+
+    // stamp is copied, so entries hit during the sort do not change the order under it
+    private static final class Victim<V> {
+        static final Comparator<Victim<?>> LEAST_RECENT_FIRST = new Comparator<Victim<?>>() {
+            @Override
+            public int compare(Victim<?> a, Victim<?> b) {
+                return Long.compare(a.lastAccess - b.lastAccess, 0);
+            }
+        };
+
+        final String key;
+        final Entry<V> entry;
+        final long lastAccess;
+
+        Victim(String key, Entry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+    }
+
+    /** One in-flight load; the leader runs it, everybody else who missed the same key waits for the result. */
+    private final class Load {
+        final FutureTask<V> task;
+        private int waiters = 1; // guarded by this
+        private boolean done;    // guarded by this, no waiters join after it
+
+        Load(final String key, final Loader<V> loader) {
+            task = new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    V loaded = null;
+                    try {
+                        loaded = loader.load(key);
+                        if (loaded != null) {
+                            put(key, loaded);
+                        }
+                        return loaded;
+                    } finally {
+                        loading.remove(key, Load.this);
+                        synchronized (Load.this) {
+                            done = true;
+                            // the loaded reference belongs to the leader, every waiter gets its own
+                            if (loaded instanceof ReferenceCounted && waiters > 1) {
+                                ((ReferenceCounted) loaded).retain(waiters - 1);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /** @return false if the load is done already and the caller has to look again */
+        synchronized boolean join() {
+            if (done) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+    }
+}
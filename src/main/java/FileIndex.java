@@ -0,0 +1,384 @@
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AsciiString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata of every file in the public directory (size, mtime, content-hash ETag, Content-Type), built on startup
+ * and kept current by a WatchService thread, so requests never stat files.
+ * Listeners are told about every changed file, memory cache uses it to drop stale entries.
+ */
+public class FileIndex {
+
+    public interface Listener {
+        void fileChanged(String pathString);
+    }
+
+    private static final Pattern HTML_FILE = Pattern.compile("\\.html?$", Pattern.CASE_INSENSITIVE);
+    // href/src of <link>, <script> and <img>, without query and fragment
+    private static final Pattern ASSET_REFERENCE = Pattern.compile(
+            "<(?:link|script|img)\\b[^>]*?\\s(?:href|src)\\s*=\\s*[\"']([^\"'?#]+)", Pattern.CASE_INSENSITIVE);
+
+    private final Path dir;
+    private final String dirPrefix;
+    private final long hashMaxBytes;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile WatchService watchService;
+
+    /**
+     * @param publicDir directory with trailing slash, keys of the index are publicDir + file name
+     * @param hashMaxBytes files from this size get an ETag from mtime instead of a hash of the content,
+     * a change of a big file does not read it all (they are sent with sendfile, never cached or asked from peers)
+     */
+    public FileIndex(String publicDir, long hashMaxBytes) {
+        this.dir = Paths.get(publicDir);
+        this.dirPrefix = publicDir;
+        this.hashMaxBytes = hashMaxBytes;
+    }
+
+    /** @return metadata of the file, or null if there is no such (visible, regular) file */
+    public Entry get(String pathString) {
+        return entries.get(pathString);
+    }
+
+    public Iterable<Entry> entries() {
+        return entries.values();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isWatching() {
+        return watchService != null;
+    }
+
+    public void scan() throws IOException {
+        Set<String> seen = new HashSet<String>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String pathString = dirPrefix + file.getFileName();
+                seen.add(pathString);
+                refresh(pathString);
+            }
+        }
+        for (String pathString : entries.keySet()) {
+            if (!seen.contains(pathString)) {
+                refresh(pathString);
+            }
+        }
+    }
+
+    /** Scans the directory and starts watching it on a daemon thread. */
+    public void start() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        scan();
+        watchService = watcher;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "public-dir-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        WatchService watcher = watchService;
+        watchService = null;
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private void watch() {
+        WatchService watcher = watchService;
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // events were lost, everything may have changed
+                            for (String pathString : entries.keySet()) {
+                                changed(pathString);
+                            }
+                            scan();
+                        } else {
+                            refresh(dirPrefix + event.context());
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (!key.reset()) {
+                    System.err.println("Stopped watching " + dir + ", it is no longer accessible");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void refresh(String pathString) throws IOException {
+        Entry entry = load(pathString);
+        Entry old = entry == null ? entries.remove(pathString) : entries.put(pathString, entry);
+        if (old != null && entry != null && old.lastModified == entry.lastModified && old.size == entry.size) {
+            return; // e.g. a second MODIFY event for the same write
+        }
+
+        String basePath = basePath(pathString);
+        if (basePath != null && entries.containsKey(basePath)) {
+            // pre-built .gz/.br sibling changed, base file has to pick it up
+            refresh(basePath);
+            changed(basePath);
+        }
+        changed(pathString);
+    }
+
+    private Entry load(String pathString) throws IOException {
+        Path path = Paths.get(pathString);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() || Files.isHidden(path)) {
+                return null;
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        List<String> encodings = new ArrayList<String>(2);
+        if (basePath(pathString) == null) {
+            for (String encoding : new String[]{ContentEncoding.BR, ContentEncoding.GZIP}) {
+                if (Files.isRegularFile(Paths.get(ContentEncoding.siblingPath(pathString, encoding)))) {
+                    encodings.add(encoding);
+                }
+            }
+        }
+        long contentHash;
+        try {
+            contentHash = attributes.size() < hashMaxBytes
+                    ? contentHash(path) : attributes.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String earlyHints = null;
+        if (HTML_FILE.matcher(pathString).find()) {
+            try {
+                earlyHints = preloadLinks(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        return new Entry(pathString, attributes.size(), attributes.lastModifiedTime().toMillis(), contentHash,
+                Collections.unmodifiableList(encodings), earlyHints);
+    }
+
+    /**
+     * Link header value for 103 Early Hints: css, js and images a html page references,
+     * e.g. {@code </public/layout.css>; rel=preload; as=style}
+     * @return null if the page references nothing to preload
+     */
+    private String preloadLinks(String html) {
+        Set<String> uris = new LinkedHashSet<String>();
+        StringBuilder links = new StringBuilder();
+        Matcher matcher = ASSET_REFERENCE.matcher(html);
+        while (matcher.find()) {
+            String uri = matcher.group(1).trim();
+            if (uri.isEmpty() || uri.startsWith("//") || uri.indexOf(':') >= 0) {
+                continue; // other host, data: or javascript:
+            }
+            if (!uri.startsWith("/")) {
+                uri = "/" + dirPrefix + uri;
+            }
+            String as = preloadDestination(uri);
+            if (as == null || !uris.add(uri)) {
+                continue;
+            }
+            if (links.length() > 0) {
+                links.append(", ");
+            }
+            links.append('<').append(uri).append(">; rel=preload; as=").append(as);
+            if (as.equals("font")) {
+                links.append("; crossorigin");
+            }
+        }
+        return links.length() == 0 ? null : links.toString();
+    }
+
+    private static String preloadDestination(String uri) {
+        String extension = uri.substring(uri.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        switch (extension) {
+            case "css":
+                return "style";
+            case "js":
+                return "script";
+            case "jpg": case "jpeg": case "png": case "gif": case "svg": case "ico": case "webp":
+                return "image";
+            case "woff": case "woff2":
+                return "font";
+            default:
+                return null;
+        }
+    }
+
+    // read once per version of the file, so ETag is the same on every replica and for every mtime
+    private static long contentHash(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (fileChannel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    // public/app.js.gz -> public/app.js
+    private static String basePath(String pathString) {
+        for (String encoding : new String[]{ContentEncoding.BR, ContentEncoding.GZIP}) {
+            String suffix = ContentEncoding.siblingPath("", encoding);
+            if (pathString.endsWith(suffix)) {
+                return pathString.substring(0, pathString.length() - suffix.length());
+            }
+        }
+        return null;
+    }
+
+    private void changed(String pathString) {
+        for (Listener listener : listeners) {
+            listener.fileChanged(pathString);
+        }
+    }
+
+    /** Immutable metadata of one version of a file, replaced by a new object when the file changes. */
+    public static final class Entry {
+        public final String pathString;
+        public final long size;
+        public final long lastModified;
+        public final String lastModifiedString;
+        /** strong ETag of the file as it is on disk, from CRC32 of the content (mtime for big files) and size */
+        public final String etag;
+        public final CharSequence contentType;
+        /** encodings with a pre-built sibling file, see ContentEncoding */
+        public final List<String> precompressed;
+        /** Link header for 103 Early Hints, only for html files that reference css/js/images, otherwise null */
+        public final CharSequence earlyHints;
+        private final String etagPrefix; // opaque-tag without closing quote, variants append "-variant"
+        private final CharSequence lastModifiedValue;
+        private final CharSequence etagValue;
+
+        Entry(String pathString, long size, long lastModified, long contentHash, List<String> precompressed,
+              String earlyHints) {
+            this.pathString = pathString;
+            this.earlyHints = earlyHints == null ? null : AsciiString.cached(earlyHints);
+            this.size = size;
+            this.lastModified = lastModified;
+            this.precompressed = precompressed;
+            this.contentType = ServerHeaders.contentType(pathString);
+            this.lastModifiedString = ServerHeaders.formatDate(lastModified);
+            this.lastModifiedValue = AsciiString.cached(lastModifiedString);
+
+            this.etagPrefix = '"' + Long.toHexString(contentHash) + '-' + Long.toHexString(size);
+            this.etag = etagPrefix + '"';
+            this.etagValue = AsciiString.cached(etag);
+        }
+
+        /** ETag of the file as it is on disk, prepared for header encoding. */
+        public CharSequence etagValue() {
+            return etagValue;
+        }
+
+        /**
+         * Strong ETag of a variant of the file: other charset or content encoding is other bytes, so other tag.
+         * @param variant e.g. "gzip", "us-ascii", "us-ascii-gzip"; null for the file as it is on disk
+         */
+        public String etag(String variant) {
+            return variant == null ? etag : etagPrefix + '-' + variant + '"';
+        }
+
+        /**
+         * If-None-Match check: "*", a list of tags, weak comparison (W/ prefix is ignored).
+         * Tags of every variant of this version of the file match.
+         * @return the tag that matched, for the ETag of the 304 (the one of the file as on disk for "*"),
+         * null if none did
+         */
+        public CharSequence matchingEtag(String ifNoneMatch) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) {
+                    return etagValue;
+                }
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag)) {
+                    return etagValue;
+                }
+                if (tag.startsWith(etagPrefix) && tag.length() > etagPrefix.length() + 2
+                        && tag.charAt(etagPrefix.length()) == '-' && tag.endsWith("\"")
+                        && isVariantName(tag, etagPrefix.length() + 1, tag.length() - 1)) {
+                    return tag; // a variant, gzip, us-ascii...
+                }
+            }
+            return null;
+        }
+
+        // lower case letters, digits and '-', the tag is sent back as it came
+        private static boolean isVariantName(String tag, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = tag.charAt(i);
+                if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // headers that depend only on the file: Content-Type, Last-Modified, ETag
+        public void setHeaders(HttpHeaders headers) {
+            headers.set(ServerHeaders.CONTENT_TYPE, contentType);
+            headers.set(ServerHeaders.LAST_MODIFIED, lastModifiedValue);
+            headers.set(ServerHeaders.ETAG, etagValue);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded thread pool for blocking disk reads on memory cache misses, so one slow read never stalls
+ * the other connections of an event loop. When the queue is full a read is rejected at once
+ * and the request is answered with 503, the queue never grows without limit.
+ */
+public final class FileReadExecutor {
+    private final ThreadPoolExecutor pool;
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public FileReadExecutor(int threads, int queueSize) {
+        this(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DefaultThreadFactory("file-read", true)));
+    }
+
+    // benchmarks pass a pool that runs reads on the calling thread, see HttpRouterServerInitializer
+    FileReadExecutor(ThreadPoolExecutor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs read on the pool. The returned future belongs to loop, so its listeners run on the event loop
+     * of the channel and can write to it directly.
+     * @return null if the queue is full
+     */
+    public <V> Future<V> submit(EventExecutor loop, final Callable<V> read) {
+        final Promise<V> promise = loop.newPromise();
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promise.setSuccess(read.call());
+                    } catch (Throwable t) {
+                        promise.setFailure(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return null;
+        }
+        reads.increment();
+        return promise;
+    }
+
+    public long readCount() {
+        return reads.sum();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public int queued() {
+        return pool.getQueue().size();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -1,22 +1,162 @@
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.BadClientSilencer;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+// any Channel, not only SocketChannel, so the same pipeline can be driven by EmbeddedChannel in benchmarks
+class HttpRouterServerInitializer extends ChannelInitializer<Channel> {
+    public static final boolean H2C = HttpRouterServer.H2C;
+    public static final long H2_MAX_CONCURRENT_STREAMS = HttpRouterServer.H2_MAX_CONCURRENT_STREAMS;
+    public static final int IDLE_TIMEOUT_SECONDS = HttpRouterServer.IDLE_TIMEOUT_SECONDS;
+    public static final int FILE_READ_THREADS = HttpRouterServer.FILE_READ_THREADS;
+    public static final int FILE_READ_QUEUE_SIZE = HttpRouterServer.FILE_READ_QUEUE_SIZE;
+
+    // HTTP/1.1 handlers after the codec, removed when the connection switches to HTTP/2
+    private static final String[] HTTP1_HANDLERS = {"requestTimer", "chunkedWriter", "handler", "badClientSilencer"};
 
-class HttpRouterServerInitializer extends ChannelInitializer<SocketChannel> {
     private final HttpRouterServerHandler handler;
     private final BadClientSilencer       badClientSilencer = new BadClientSilencer();
+    private final ClientLimiter           limiter = new ClientLimiter(HttpRouterServer.MAX_CONNECTIONS_PER_IP,
+            HttpRouterServer.REQUESTS_PER_SECOND_PER_IP, HttpRouterServer.REQUEST_BURST_PER_IP,
+            HttpRouterServer.LIMITS_EXEMPT_LOOPBACK);
+    private final ServerMetrics           metrics;
+
+    // every HTTP/2 stream is a child channel with HTTP/1 objects, so it runs through the same handler
+    private final ChannelInitializer<Channel> streamInitializer = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel stream) {
+            stream.pipeline()
+                    .addLast(new Http2StreamFrameToHttpObjectCodec(true))
+                    .addLast(metrics.newRequestTimer(true))
+                    .addLast(new ChunkedWriteHandler())
+                    .addLast(handler)
+                    .addLast(badClientSilencer);
+        }
+    };
+
+    private final HttpServerUpgradeHandler.UpgradeCodecFactory upgradeCodecFactory =
+            new HttpServerUpgradeHandler.UpgradeCodecFactory() {
+                @Override
+                public HttpServerUpgradeHandler.UpgradeCodec newUpgradeCodec(CharSequence protocol) {
+                    if (!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                        return null;
+                    }
+                    // Upgrade: h2c, the upgrade request itself is answered on stream 1
+                    return new Http2ServerUpgradeCodec(newHttp2FrameCodec(), new Http2MultiplexHandler(streamInitializer)) {
+                        @Override
+                        public void upgradeTo(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest) {
+                            removeHttp1Handlers(ctx.pipeline());
+                            super.upgradeTo(ctx, upgradeRequest);
+                        }
+                    };
+                }
+            };
+
+    public HttpRouterServerInitializer(Router router, FileIndex fileIndex) {
+        this(router, fileIndex, new FileReadExecutor(FILE_READ_THREADS, FILE_READ_QUEUE_SIZE));
+    }
+
+    // test hook: RequestHandlingBenchmark reads memory cache misses on its own thread, off-thread completion
+    // would write to the EmbeddedChannel from a file read thread
+    HttpRouterServerInitializer(Router router, FileIndex fileIndex, FileReadExecutor fileReads) {
+        handler = new HttpRouterServerHandler(router, fileIndex, fileReads);
+        metrics = new ServerMetrics(handler.fileCache, handler.fileReads, limiter, handler.peerCache);
+    }
 
-    public HttpRouterServerInitializer(Router router) {
-        handler = new HttpRouterServerHandler(router);
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /** Loads files into memory cache, see HttpRouterServerHandler.warmUp */
+    public int warmUp(Collection<String> pathStrings) {
+        return handler.warmUp(pathStrings);
+    }
+
+    /** Reloadable settings, see ServerConfig.RELOADABLE */
+    public void reconfigure(long memoryCacheMaxBytes, long memoryCacheExpiresInMs) {
+        handler.reconfigure(memoryCacheMaxBytes, memoryCacheExpiresInMs);
+    }
+
+    /** Listens for peers, if there are any, see PeerCache */
+    public void startPeerCache(int port) throws InterruptedException {
+        if (handler.peerCache != null) {
+            handler.peerCache.start(port);
+        }
+    }
+
+    /** Stops file read threads and the peer cache, after event loops are shut down. */
+    public void shutdown() {
+        if (handler.peerCache != null) {
+            handler.peerCache.stop();
+        }
+        handler.fileReads.shutdown();
     }
 
     @Override
-    public void initChannel(SocketChannel ch) {
-        ch.pipeline()
-                .addLast(new HttpServerCodec())
-                .addLast(handler)
-                .addLast(badClientSilencer);
+    public void initChannel(Channel ch) {
+        // limits before any decoding: a rejected or idle connection costs no codec work
+        ChannelPipeline pipeline = ch.pipeline()
+                .addLast(metrics.connectionCounter())
+                .addLast(new IdleStateHandler(true, 0, 0, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                .addLast(limiter.connectionLimiter());
+        if (H2C) {
+            // adds HttpServerCodec with h2c upgrade support, or switches to HTTP/2 on the prior-knowledge preface
+            HttpServerCodec http1Codec = new HttpServerCodec();
+            pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(http1Codec,
+                    new HttpServerUpgradeHandler(http1Codec, upgradeCodecFactory), new PriorKnowledgeHttp2()));
+        } else {
+            pipeline.addLast(new HttpServerCodec());
+        }
+        pipeline.addLast(HTTP1_HANDLERS[0], metrics.newRequestTimer(false))
+                .addLast(HTTP1_HANDLERS[1], new ChunkedWriteHandler())
+                .addLast(HTTP1_HANDLERS[2], handler)
+                .addLast(HTTP1_HANDLERS[3], badClientSilencer);
+    }
+
+    private Http2FrameCodec newHttp2FrameCodec() {
+        return Http2FrameCodecBuilder.forServer()
+                .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(H2_MAX_CONCURRENT_STREAMS))
+                .build();
+    }
+
+    private static void removeHttp1Handlers(ChannelPipeline pipeline) {
+        for (String name : HTTP1_HANDLERS) {
+            if (pipeline.get(name) != null) {
+                pipeline.remove(name);
+            }
+        }
+    }
+
+    // put in place of the HTTP/1.1 codec when a connection starts with the HTTP/2 preface
+    private final class PriorKnowledgeHttp2 extends ChannelHandlerAdapter {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            removeHttp1Handlers(pipeline);
+            String codecName = ctx.name() + ".h2";
+            pipeline.addAfter(ctx.name(), codecName, newHttp2FrameCodec())
+                    .addAfter(codecName, null, new Http2MultiplexHandler(streamInitializer))
+                    .remove(this);
+        }
     }
-}
\ No newline at end of file
+}
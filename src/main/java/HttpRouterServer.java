@@ -16,47 +16,301 @@
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.router.Router;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class HttpRouterServer {
-    public static final int PORT = 8000;
-    public static final String PUBLIC_DIR = "public/";
-    public static final boolean FILE_MEMORY_CACHING = true;
-    public static final long MEMORY_CACHE_EXPIRES_IN_MS = 60000L; //60sec
+    // defaults below, overridden by server.properties (-Dconfig=path) and -Dserver.* system properties, see ServerConfig
+    public static final ServerConfig CONFIG = ServerConfig.load();
+    public static final long CONFIG_RELOAD_INTERVAL_MS = CONFIG.getLong("server.config.reload.interval.ms", 2000L);
 
-    public static void main(String[] args) throws Exception {
-        Router<String> router = new Router<String>()
+    public static final int PORT = CONFIG.getInt("server.port", 8000);
+    public static final int ADMIN_PORT = CONFIG.getInt("server.admin.port", 8001); //GET /metrics, Prometheus text format
+    public static final String ADMIN_ADDRESS = CONFIG.getString("server.admin.address", "127.0.0.1"); //metrics are for local scrapers only, 0.0.0.0 - every interface
+    public static final String PUBLIC_DIR = CONFIG.getString("server.public.dir", "public/");
+    public static final boolean FILE_MEMORY_CACHING = CONFIG.getBoolean("server.file.memory.caching", true);
+    public static final long MEMORY_CACHE_EXPIRES_IN_MS = CONFIG.getLong(ServerConfig.MEMORY_CACHE_EXPIRES_IN_MS, 60000L); //60sec, reloadable
+    public static final long MEMORY_CACHE_MAX_BYTES = CONFIG.getLong(ServerConfig.MEMORY_CACHE_MAX_BYTES, 64L * 1024 * 1024); //64MB, reloadable
+    public static final int HTTP_CACHE_SECONDS = CONFIG.getInt(ServerConfig.HTTP_CACHE_SECONDS, 60); //Cache-Control max-age and Expires, reloadable
+    public static final boolean WARM_UP = CONFIG.getBoolean("server.warm.up", true); //files are loaded to memory cache before the port is bound
+    public static final String WARM_UP_MANIFEST = CONFIG.getString("server.warm.up.manifest", "warmup.txt"); //hot files in PUBLIC_DIR, one per line; without it every file is loaded
+    public static final boolean MEMORY_MAPPED_STORE = CONFIG.getBoolean("server.memory.mapped.store", false); //cached files are mapped read-only from disk (page cache) instead of copied to direct memory
+    public static final long ZERO_COPY_THRESHOLD_BYTES = CONFIG.getLong("server.zero.copy.threshold.bytes", 256L * 1024); //files from 256KB are sent with sendfile, not cached
+    public static final int FILE_READ_THREADS = CONFIG.getInt("server.file.read.threads", 4); //memory cache misses are read from disk on this pool, not on event loops
+    public static final int FILE_READ_QUEUE_SIZE = CONFIG.getInt("server.file.read.queue.size", 1024); //reads waiting for a thread, 503 when full
+    public static final boolean FLUSH_CONSOLIDATION = CONFIG.getBoolean("server.flush.consolidation", true); //responses to pipelined requests are flushed once per read, not one by one
+    public static final boolean H2C = CONFIG.getBoolean("server.h2c", true); //HTTP/2 over cleartext, prior knowledge or Upgrade: h2c
+    public static final long H2_MAX_CONCURRENT_STREAMS = CONFIG.getLong("server.h2.max.concurrent.streams", 100);
+    public static final int BUNDLE_MAX_FILES = CONFIG.getInt("server.bundle.max.files", 32); //GET /bundle?files=a.js,b.js, files in one bundle
+    public static final int BUNDLE_MAX_REMEMBERED = CONFIG.getInt("server.bundle.max.remembered", 1024); //different file lists kept with their versions
+    public static final String PEERS = CONFIG.getString("server.peers", ""); //host:port of the peer port of every instance, this one too; empty - no peer cache
+    public static final int PEER_PORT = CONFIG.getInt("server.peer.port", 9000); //memory cache misses of other instances are answered on it
+    public static final String PEER_SELF = CONFIG.getString("server.peer.self", "127.0.0.1:" + PEER_PORT); //this instance as it is written in PEERS
+    public static final long PEER_TIMEOUT_MS = CONFIG.getLong("server.peer.timeout.ms", 200); //file is read from disk when the owner does not answer in time
+    public static final boolean EARLY_HINTS = CONFIG.getBoolean("server.early.hints", false); //103 with Link: rel=preload for assets referenced by html files, some HTTP/1.1 clients and proxies choke on 1xx
+    public static final int MAX_CONNECTIONS_PER_IP = CONFIG.getInt(ServerConfig.MAX_CONNECTIONS_PER_IP, 256); //503 and close on more
+    public static final int REQUESTS_PER_SECOND_PER_IP = CONFIG.getInt(ServerConfig.REQUESTS_PER_SECOND_PER_IP, 1000); //token bucket refill rate, 429 when it is empty
+    public static final int REQUEST_BURST_PER_IP = CONFIG.getInt(ServerConfig.REQUEST_BURST_PER_IP, 2000); //token bucket size
+    public static final boolean LIMITS_EXEMPT_LOOPBACK = CONFIG.getBoolean("server.limits.exempt.loopback", true); //no per-IP limits for a local proxy or the load generator
+    public static final int IDLE_TIMEOUT_SECONDS = CONFIG.getInt("server.idle.timeout.seconds", 60); //connection is closed when nothing is read or written for so long
+    public static final boolean NATIVE_TRANSPORT = CONFIG.getBoolean("server.native.transport", true); //epoll on Linux, falls back to NIO if native library is unavailable
+    public static final int WORKER_THREADS = CONFIG.getInt("server.worker.threads", Runtime.getRuntime().availableProcessors() * 2);
+    public static final int TCP_FASTOPEN = CONFIG.getInt("server.tcp.fastopen", 256); //pending TFO connections per listening socket, epoll only; 0 - off
+    public static final int SO_BACKLOG = CONFIG.getInt("server.so.backlog", 1024); //accept queue of each listening socket
+    public static final int SO_RCVBUF = CONFIG.getInt("server.so.rcvbuf", 0); //0 - OS default and autotuning
+    public static final int SO_SNDBUF = CONFIG.getInt("server.so.sndbuf", 0); //0 - OS default and autotuning
+    public static final int WRITE_BUFFER_LOW_WATER_MARK = CONFIG.getInt("server.write.buffer.low.water.mark", 32 * 1024);
+    public static final int WRITE_BUFFER_HIGH_WATER_MARK = CONFIG.getInt("server.write.buffer.high.water.mark", 64 * 1024); //channel is not writable above it, chunked files wait
+
+    public static Router<String> createRouter() {
+        return new Router<String>()
                 .GET(PUBLIC_DIR+":id", "public")
                 .GET("/", "index")
                 .GET(PUBLIC_DIR, "index")
+                .GET("/bundle", "bundle")
 //            .GET("/image", "base64")
 //            .GET("/img", "image")
 //            .GET("/",             "Index page")
 //            .GET("/articles/:id", "Article show page")
                 .notFound("404 Not Found");
+    }
+
+    private final List<Channel> acceptors;
+    private final EventLoopGroup[] groups;
+    private final FileIndex fileIndex;
+    private final HttpRouterServerInitializer initializer;
+
+    private HttpRouterServer(List<Channel> acceptors, FileIndex fileIndex, HttpRouterServerInitializer initializer,
+                             EventLoopGroup... groups) {
+        this.acceptors = acceptors;
+        this.fileIndex = fileIndex;
+        this.initializer = initializer;
+        this.groups = groups;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HttpRouterServer server = start(PORT, ADMIN_PORT, NATIVE_TRANSPORT);
+        try {
+            server.awaitClose();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Binds the server and returns once it accepts connections, the load generator starts it this way too.
+     * @param adminPort metrics port, served by its own thread
+     * @param nativeTransport epoll if available, NIO otherwise
+     */
+    public static HttpRouterServer start(int port, int adminPort, boolean nativeTransport) throws Exception {
+        Router<String> router = createRouter();
         System.out.println(router);
 
+        FileIndex fileIndex = new FileIndex(PUBLIC_DIR, ZERO_COPY_THRESHOLD_BYTES);
+        try {
+            fileIndex.start();
+        } catch (IOException e) {
+            System.err.println("Can not watch " + PUBLIC_DIR + ", memory cache falls back to expiring entries: " + e);
+            fileIndex.scan();
+        }
+
+        HttpRouterServerInitializer initializer = new HttpRouterServerInitializer(router, fileIndex);
+        EventLoopGroup adminGroup = null;
+        // the load generator and benchmarks start servers in-process, a failed start must not leave threads behind
+        try {
+            // before warm-up, instances that start together fill from each other
+            initializer.startPeerCache(PEER_PORT);
+            if (WARM_UP) {
+                warmUp(initializer, fileIndex);
+            }
+            watchConfig(initializer);
+            adminGroup = startAdmin(adminPort, initializer.metrics());
+            if (nativeTransport && Epoll.isAvailable()) {
+                return startEpoll(port, initializer, fileIndex, adminGroup);
+            }
+            if (nativeTransport) {
+                System.out.println("Native epoll transport is unavailable: " + Epoll.unavailabilityCause());
+            }
+            return startNio(port, initializer, fileIndex, adminGroup);
+        } catch (Exception e) { // also BindException
+            if (adminGroup != null) {
+                adminGroup.shutdownGracefully();
+            }
+            CONFIG.stopWatching();
+            initializer.shutdown();
+            fileIndex.stop();
+            throw e;
+        }
+    }
+
+    // before bind, so no request pays for a disk read of a hot file after a restart
+    private static void warmUp(HttpRouterServerInitializer initializer, FileIndex fileIndex) throws IOException {
+        long started = System.nanoTime();
+        List<String> pathStrings = new ArrayList<String>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(WARM_UP_MANIFEST), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    pathStrings.add(PUBLIC_DIR + line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            for (FileIndex.Entry entry : fileIndex.entries()) {
+                pathStrings.add(entry.pathString);
+            }
+        }
+        int loaded = initializer.warmUp(pathStrings);
+        System.out.println("Warm-up: " + loaded + " of " + pathStrings.size() + " files in memory cache"
+                + (MEMORY_MAPPED_STORE ? " (memory mapped)" : "") + ", "
+                + (System.nanoTime() - started) / 1000000 + " ms");
+    }
+
+    // only reloadable settings are applied, connections and everything else stay as they are
+    private static void watchConfig(final HttpRouterServerInitializer initializer) {
+        CONFIG.watch(CONFIG_RELOAD_INTERVAL_MS, new ServerConfig.Listener() {
+            @Override
+            public void reloaded(ServerConfig config) {
+                long maxBytes = config.getLong(ServerConfig.MEMORY_CACHE_MAX_BYTES, MEMORY_CACHE_MAX_BYTES);
+                long expiresInMs = config.getLong(ServerConfig.MEMORY_CACHE_EXPIRES_IN_MS, MEMORY_CACHE_EXPIRES_IN_MS);
+                int cacheSeconds = config.getInt(ServerConfig.HTTP_CACHE_SECONDS, HTTP_CACHE_SECONDS);
+                if (maxBytes < 0 || expiresInMs < 0 || cacheSeconds < 0) {
+                    throw new IllegalArgumentException("cache limits and max-age can not be negative");
+                }
+                initializer.reconfigure(maxBytes, expiresInMs);
+                ServerHeaders.setCacheSeconds(cacheSeconds);
+                System.out.println("Config " + config.file() + " reloaded: memory cache " + maxBytes + " bytes, "
+                        + expiresInMs + " ms, max-age " + cacheSeconds);
+            }
+        });
+    }
+
+    // one thread of its own, scrapes never wait behind static file requests and the other way round
+    private static EventLoopGroup startAdmin(int adminPort, final ServerMetrics metrics) throws InterruptedException {
+        NioEventLoopGroup adminGroup = new NioEventLoopGroup(1);
+        try {
+            final AdminHandler adminHandler = new AdminHandler(metrics);
+            new ServerBootstrap()
+                    .group(adminGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new HttpServerCodec(), adminHandler);
+                        }
+                    })
+                    .bind(ADMIN_ADDRESS, adminPort).sync();
+            System.out.println("Metrics: http://" + ADMIN_ADDRESS + ':' + adminPort + AdminHandler.METRICS_PATH);
+            return adminGroup;
+        } catch (Exception e) { // also BindException, sync() rethrows it unchecked
+            adminGroup.shutdownGracefully();
+            throw e;
+        }
+    }
+
+    public void awaitClose() throws InterruptedException {
+        for (Channel ch : acceptors) {
+            ch.closeFuture().sync();
+        }
+    }
+
+    public void stop() throws IOException {
+        for (EventLoopGroup group : groups) {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+        CONFIG.stopWatching();
+        initializer.shutdown();
+        fileIndex.stop();
+    }
+
+    // socket options of both transports, from config
+    private static ServerBootstrap socketOptions(ServerBootstrap b) {
+        b.option(ChannelOption.SO_BACKLOG, SO_BACKLOG)
+                .childOption(ChannelOption.TCP_NODELAY, java.lang.Boolean.TRUE)
+                .childOption(ChannelOption.SO_KEEPALIVE, java.lang.Boolean.TRUE)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK));
+        if (SO_RCVBUF > 0) {
+            // on the listening socket too, the window scale is agreed in the handshake
+            b.option(ChannelOption.SO_RCVBUF, SO_RCVBUF).childOption(ChannelOption.SO_RCVBUF, SO_RCVBUF);
+        }
+        if (SO_SNDBUF > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, SO_SNDBUF);
+        }
+        return b;
+    }
+
+    private static HttpRouterServer startNio(int port, HttpRouterServerInitializer initializer, FileIndex fileIndex,
+                                             EventLoopGroup adminGroup) throws InterruptedException {
         NioEventLoopGroup bossGroup   = new NioEventLoopGroup(1);
-        NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+        NioEventLoopGroup workerGroup = new NioEventLoopGroup(WORKER_THREADS);
 
         try {
-            ServerBootstrap b = new ServerBootstrap();
+            ServerBootstrap b = socketOptions(new ServerBootstrap());
             b.group(bossGroup, workerGroup)
-                    .childOption(ChannelOption.TCP_NODELAY, java.lang.Boolean.TRUE)
-                    .childOption(ChannelOption.SO_KEEPALIVE, java.lang.Boolean.TRUE)
                     .channel(NioServerSocketChannel.class)
-                    .childHandler(new HttpRouterServerInitializer(router));
+                    .childHandler(initializer);
 
-            Channel ch = b.bind(PORT).sync().channel();
-            System.out.println("Server started: http://127.0.0.1:" + PORT + '/');
-
-            ch.closeFuture().sync();
-        } finally {
+            Channel ch = b.bind(port).sync().channel();
+            System.out.println("Transport: nio, 1 acceptor, " + WORKER_THREADS + " workers");
+            System.out.println("Server started: http://127.0.0.1:" + port + '/');
+            return new HttpRouterServer(Collections.singletonList(ch), fileIndex, initializer, bossGroup, workerGroup, adminGroup);
+        } catch (Exception e) { // also BindException, sync() rethrows it unchecked
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            throw e;
+        }
+    }
+
+    // One listening socket per event loop bound with SO_REUSEPORT, so the kernel spreads accepts across cores.
+    private static HttpRouterServer startEpoll(int port, HttpRouterServerInitializer initializer, FileIndex fileIndex,
+                                               EventLoopGroup adminGroup) throws InterruptedException {
+        EventLoopGroup group = new EpollEventLoopGroup(WORKER_THREADS);
+
+        try {
+            ServerBootstrap b = socketOptions(new ServerBootstrap());
+            b.group(group, group)
+                    .option(EpollChannelOption.SO_REUSEPORT, java.lang.Boolean.TRUE)
+                    .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                    .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                    .channel(EpollServerSocketChannel.class)
+                    .childHandler(initializer);
+            if (TCP_FASTOPEN > 0) {
+                // request of a returning client comes in the SYN, one round trip less
+                b.option(ChannelOption.TCP_FASTOPEN, TCP_FASTOPEN);
+            }
+
+            // bind() registers every server channel on the next event loop of the group
+            List<Channel> acceptors = new ArrayList<Channel>(WORKER_THREADS);
+            for (int i = 0; i < WORKER_THREADS; i++) {
+                acceptors.add(b.bind(port).sync().channel());
+            }
+            System.out.println("Transport: epoll (edge-triggered, SO_REUSEPORT), "
+                    + acceptors.size() + " acceptors, " + WORKER_THREADS + " workers");
+            System.out.println("Server started: http://127.0.0.1:" + port + '/');
+            return new HttpRouterServer(acceptors, fileIndex, initializer, group, adminGroup);
+        } catch (Exception e) { // also BindException, sync() rethrows it unchecked
+            group.shutdownGracefully();
+            throw e;
         }
     }
-}
\ No newline at end of file
+}
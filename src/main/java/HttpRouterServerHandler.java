@@ -1,100 +1,278 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.router.RouteResult;
 import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 
-import javax.activation.MimetypesFileTypeMap;
-import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 @ChannelHandler.Sharable
 public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpRequest> {
     public static final String PUBLIC_DIR = HttpRouterServer.PUBLIC_DIR;
     public static final boolean FILE_MEMORY_CACHING = HttpRouterServer.FILE_MEMORY_CACHING;
     public static final long MEMORY_CACHE_EXPIRES_IN_MS = HttpRouterServer.MEMORY_CACHE_EXPIRES_IN_MS;
-    public static final int HTTP_CACHE_SECONDS = 60;
+    public static final long MEMORY_CACHE_MAX_BYTES = HttpRouterServer.MEMORY_CACHE_MAX_BYTES;
+    public static final long ZERO_COPY_THRESHOLD_BYTES = HttpRouterServer.ZERO_COPY_THRESHOLD_BYTES;
+    public static final boolean FLUSH_CONSOLIDATION = HttpRouterServer.FLUSH_CONSOLIDATION;
+    public static final boolean EARLY_HINTS = HttpRouterServer.EARLY_HINTS;
+    public static final int BUNDLE_MAX_FILES = HttpRouterServer.BUNDLE_MAX_FILES;
+    public static final int BUNDLE_MAX_REMEMBERED = HttpRouterServer.BUNDLE_MAX_REMEMBERED;
+    public static final String PEERS = HttpRouterServer.PEERS;
+    public static final String PEER_SELF = HttpRouterServer.PEER_SELF;
+    public static final long PEER_TIMEOUT_MS = HttpRouterServer.PEER_TIMEOUT_MS;
+    public static final int FILE_READ_THREADS = HttpRouterServer.FILE_READ_THREADS;
+    public static final int FILE_READ_QUEUE_SIZE = HttpRouterServer.FILE_READ_QUEUE_SIZE;
+    public static final int CHUNKED_FILE_CHUNK_SIZE = 8192;
+    public static final int HTTP_CACHE_SECONDS = HttpRouterServer.HTTP_CACHE_SECONDS;
     public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
     public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
 
+    private static final AttributeKey<Boolean> CLOSING = AttributeKey.valueOf("closing");
+    private static final AttributeKey<Waiting> WAITING = AttributeKey.valueOf("waiting");
+
+    // rejections are prepared once, every use is a duplicate sharing the content
+    private static final FullHttpResponse TOO_MANY_REQUESTS = rejection(HttpResponseStatus.TOO_MANY_REQUESTS,
+            "429 Too many requests");
+    private static final FullHttpResponse SERVICE_UNAVAILABLE = rejection(HttpResponseStatus.SERVICE_UNAVAILABLE,
+            "503 Service unavailable");
+
     private final Router<String> router;
-    public HashMap<String, cachedStringFile> stringCache = new HashMap<String, cachedStringFile>();
-    public HashMap<String, cachedByteArray> byteCache = new HashMap<String, cachedByteArray>();
-    public HttpRouterServerHandler(Router<String> router) {
+    private final FileIndex fileIndex;
+    private final StaticRoutes staticRoutes;
+    private final Bundles bundles;
+    final FileCache<CachedFile> fileCache;
+    final FileReadExecutor fileReads;
+    final PeerCache peerCache; // null without PEERS
+    private final FileCache.Loader<CachedFile> textFileLoader = fileLoader(true, true);
+    private final FileCache.Loader<CachedFile> binaryFileLoader = fileLoader(false, true);
+    // for requests of peers: memory cache and disk of this instance, never passed on to another peer
+    private final FileCache.Loader<CachedFile> localTextFileLoader = fileLoader(true, false);
+    private final FileCache.Loader<CachedFile> localBinaryFileLoader = fileLoader(false, false);
+    private final PeerCache.Store peerStore = new PeerCache.Store() {
+        @Override
+        public ByteBuf cached(String pathString, String etag) {
+            CachedFile file = FILE_MEMORY_CACHING ? fileCache.getIfPresent(pathString) : null;
+            return file == null ? null : identityBody(file, etag);
+        }
+
+        @Override
+        public ByteBuf read(String pathString, String etag) throws IOException {
+            FileIndex.Entry meta = fileIndex.get(pathString);
+            if (meta == null || !meta.etag.equals(etag) || meta.size >= ZERO_COPY_THRESHOLD_BYTES) {
+                return null;
+            }
+            FileCache.Loader<CachedFile> loader = StaticRoutes.kindOf(pathString) == StaticRoutes.Kind.HTML
+                    ? localTextFileLoader : localBinaryFileLoader;
+            CachedFile file = FILE_MEMORY_CACHING ? fileCache.get(pathString, loader) : loader.load(pathString);
+            return file == null ? null : identityBody(file, etag);
+        }
+    };
+    // runs on fileReads; files of the bundle come from memory cache, read from disk if they are not there
+    private final FileCache.Loader<CachedFile> bundleLoader = new FileCache.Loader<CachedFile>() {
+        @Override
+        public CachedFile load(String key) throws IOException {
+            Bundles.Bundle bundle = bundles.get(key);
+            if (bundle == null) {
+                return null;
+            }
+            List<CachedFile> files = new ArrayList<CachedFile>(bundle.files.size());
+            try {
+                for (FileIndex.Entry file : bundle.files) {
+                    CachedFile loaded = file.size < ZERO_COPY_THRESHOLD_BYTES
+                            ? loadFile(file.pathString, binaryFileLoader) : binaryFileLoader.load(file.pathString);
+                    if (loaded == null) {
+                        return null; // deleted meanwhile
+                    }
+                    files.add(loaded);
+                }
+                // a file that changed meanwhile changes the bundle version too, loadFile loads it again then
+                return CachedFile.bundle(bundle.meta, files, Bundles.SEPARATOR);
+            } finally {
+                for (CachedFile file : files) {
+                    file.release();
+                }
+            }
+        }
+    };
+    public HttpRouterServerHandler(Router<String> router, FileIndex fileIndex) {
+        this(router, fileIndex, new FileReadExecutor(FILE_READ_THREADS, FILE_READ_QUEUE_SIZE));
+    }
+
+    HttpRouterServerHandler(Router<String> router, FileIndex fileIndex, FileReadExecutor fileReads) {
+        this.fileReads = fileReads;
         this.router = router;
+        this.fileIndex = fileIndex;
+        this.staticRoutes = new StaticRoutes(PUBLIC_DIR, fileIndex);
+        this.bundles = new Bundles(PUBLIC_DIR, fileIndex, BUNDLE_MAX_FILES, BUNDLE_MAX_REMEMBERED);
+        this.peerCache = PEERS.isEmpty() ? null : new PeerCache(Arrays.asList(PEERS.trim().split("\\s*,\\s*")),
+                PEER_SELF, PEER_TIMEOUT_MS, (int) ZERO_COPY_THRESHOLD_BYTES, peerStore, fileReads);
+        // with the directory watched, entries are dropped exactly when their file changes instead of on a timer
+        this.fileCache = new FileCache<CachedFile>(MEMORY_CACHE_MAX_BYTES,
+                fileIndex.isWatching() ? Long.MAX_VALUE : MEMORY_CACHE_EXPIRES_IN_MS,
+                new FileCache.Weigher<CachedFile>() {
+                    @Override
+                    public long weigh(CachedFile value) {
+                        return value.size();
+                    }
+                });
+        fileIndex.addListener(new FileIndex.Listener() {
+            @Override
+            public void fileChanged(String pathString) {
+                fileCache.invalidate(pathString);
+                for (String key : bundles.fileChanged(pathString)) {
+                    fileCache.invalidate(key);
+                }
+            }
+        });
     }
 
 
-    @Override
-    public void channelRead0(ChannelHandlerContext ctx, HttpRequest req) {
+    /** New memory cache limits, applied to the running cache; entries over the new size are evicted. */
+    public void reconfigure(long maxBytes, long expiresInMs) {
+        fileCache.setLimits(maxBytes, fileIndex.isWatching() ? Long.MAX_VALUE : expiresInMs);
+    }
+
+    /**
+     * Loads files into memory cache, called before the port is bound so the first requests after a restart
+     * are cache hits. Files sent with sendfile are skipped, and files that would not fit into the cache.
+     * @return number of files loaded
+     */
+    public int warmUp(Collection<String> pathStrings) {
+        int loaded = 0;
+        for (String pathString : pathStrings) {
+            FileIndex.Entry meta = fileIndex.get(pathString);
+            if (meta == null || meta.size >= ZERO_COPY_THRESHOLD_BYTES) {
+                continue;
+            }
+            if (!CachedFile.MEMORY_MAPPED && fileCache.bytesResident() + meta.size > MEMORY_CACHE_MAX_BYTES) {
+                continue;
+            }
+            try {
+                CachedFile file = fileCache.get(pathString, loaderFor(StaticRoutes.kindOf(pathString)));
+                if (file != null) {
+                    file.release();
+                    loaded++;
+                }
+            } catch (IOException e) {
+                System.err.println("Warm-up: can not load " + pathString + ": " + e);
+            }
+        }
+        return loaded;
+    }
 
+    // with peers a miss is filled from the peer that owns the file, disk is the fallback
+    private FileCache.Loader<CachedFile> fileLoader(final boolean charsetVariants, final boolean fromPeers) {
+        return new FileCache.Loader<CachedFile>() {
+            @Override
+            public CachedFile load(String pathString) throws IOException {
+                FileIndex.Entry meta = fileIndex.get(pathString);
+                ByteBuf body = fromPeers && peerCache != null && meta != null ? peerCache.fetch(meta) : null;
+                return CachedFile.load(meta, charsetVariants, body);
+            }
+        };
+    }
 
-        // 405 if request is not GET
-        if (req.getMethod() != HttpMethod.GET) {
-            HttpResponse res = HttpMethodIsNotGet();
-            flushResponse(ctx, req, res);
+    // file as it is on disk if the cached one is of this version, the file reference is released
+    private static ByteBuf identityBody(CachedFile file, String etag) {
+        try {
+            return file.meta().etag.equals(etag) ? file.identityBody() : null;
+        } finally {
+            file.release();
         }
+    }
 
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
-        Map<String, String> paramMap = null;
-        String paramPathFirst = null;
-        if (routeResult.pathParams().isEmpty()) {
-            paramMap = null;
-        } else {
-            paramMap = (Map<String, String>) routeResult.pathParams();
-            paramPathFirst = paramMap.get("id");
+    // same loaders as publicFileResponse picks by kind
+    private FileCache.Loader<CachedFile> loaderFor(StaticRoutes.Kind kind) {
+        return kind == StaticRoutes.Kind.HTML ? textFileLoader : binaryFileLoader;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        // every route is GET, request body and the LastHttpContent after each request are dropped here,
+        // BadClientSilencer would close the connection on them and keep-alive would never work
+        if (msg instanceof HttpContent && !(msg instanceof HttpRequest)) {
+            ((HttpContent) msg).release();
+            return;
         }
+        super.channelRead(ctx, msg);
+    }
 
-        // 400 if any query params
-        if (!routeResult.queryParams().isEmpty()) {
-            HttpResponse res = invalidQueryParams();
-            flushResponse(ctx, req, res);
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, HttpRequest req) {
+        // responses go out in request order, so while a file is read for an earlier request the next ones wait
+        Waiting waiting = ctx.channel().attr(WAITING).get();
+        if (waiting != null && waiting.reading) {
+            waiting.requests.add(ReferenceCountUtil.retain(req));
+            return;
         }
+        handleRequest(ctx, req);
+    }
 
-        // URI /public/*
-        if (routeResult.target() == "public") {
-            String pathToFile = PUBLIC_DIR + paramPathFirst;
+    private void handleRequest(ChannelHandlerContext ctx, HttpRequest req) {
+        // pipelined requests after "Connection: close" are not answered
+        if (ctx.channel().attr(CLOSING).get() != null) {
+            return;
+        }
 
-            // 304 if have header IF_MODIFIED_SINCE and file was not mod, also checking FileNotFound
-            HttpResponse try304 = checkNotModifiedHeaderEtagAndRespond304(req, paramPathFirst);
-            if (try304 != null) {
-                flushResponse(ctx, req, try304);
-            }
+        // exactly one response per request, every branch ends with return
+        // 429 if the client is over its request rate
+        if (!ClientLimiter.tryAcquire(ctx.channel())) {
+            flushResponse(ctx, req, TOO_MANY_REQUESTS.retainedDuplicate());
+            return;
+        }
 
-            // public/*.jpg *.png
-            if (getExtension(paramPathFirst).equals("jpg") || getExtension(paramPathFirst).equals("png")) {
-                HttpResponse res = imgResponse(req, router, pathToFile);
-                flushResponse(ctx, req, res);
-            }
+        // 405 if request is not GET
+        if (req.method() != HttpMethod.GET) {
+            flushResponse(ctx, req, HttpMethodIsNotGet());
+            return;
+        }
 
-            //public/*.js
-            if (getExtension(paramPathFirst).equals("js")) {
-                HttpResponse res = jsResponse(req, router, pathToFile);
-                flushResponse(ctx, req, res);
-            }
+        // known file: one exact-match lookup of the raw URI, the router is not involved
+        StaticRoutes.Route route = staticRoutes.get(req.uri());
+        if (route != null) {
+            publicFileResponse(ctx, req, route);
+            return;
+        }
 
-            //public/*.css
-            if (getExtension(paramPathFirst).equals("css")) {
-                HttpResponse res = cssResponse(req, router, pathToFile);
-                flushResponse(ctx, req, res);
-            }
+        // everything else is routed once, the result is passed down
+        RouteResult<String> routeResult = router.route(req.method(), req.uri());
+
+        // GET /bundle?files=a.js,b.js, the only route with query params
+        if ("bundle".equals(routeResult.target())) {
+            bundleResponse(ctx, req, routeResult.queryParams());
+            return;
+        }
 
-            // public/*.*
-            HttpResponse res = htmlResponse(req, router);
-            flushResponse(ctx, req, res);
+        // 400 if any query params
+        if (!routeResult.queryParams().isEmpty()) {
+            flushResponse(ctx, req, invalidQueryParams());
+            return;
+        }
 
+        // URI /public/*, a name that is not in the table: encoded, or not an indexed file
+        if ("public".equals(routeResult.target())) {
+            publicFileResponse(ctx, req, staticRoutes.route(routeResult.pathParams().get("id")));
 
         } else { // != "public"
 //          HttpResponse res = createResponse(req, router);
-            HttpResponse res = blankResponse();
-            flushResponse(ctx, req, res);
+            flushResponse(ctx, req, blankResponse());
 
 //        if (routeResult.target() == "base64") {
 //            HttpResponse res = base64Response(req, router, "public/encodedImage.txt");
@@ -107,153 +285,252 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
         }
     }
 
+    private void publicFileResponse(ChannelHandlerContext ctx, HttpRequest req, StaticRoutes.Route route) {
+        FileIndex.Entry meta = fileIndex.get(route.pathString);
 
-    private HttpResponse stringFileResponse(HttpRequest req, Router<String> router, String pathString) {
-        String content = null;
-        content = checkStringContentInCache(req, stringCache);
-        if (content == null) {
-            content = readStringFile(pathString);
-            // 404 File Not Found
-            if (content == null) {
-                return FileNotFound();
-            }
+        // 304 if have header IF_MODIFIED_SINCE and file was not mod, also checking FileNotFound
+        HttpResponse try304 = checkNotModifiedHeaderEtagAndRespond304(req, meta);
+        if (try304 != null) {
+            flushResponse(ctx, req, try304);
+            return;
         }
 
-        FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content, CharsetUtil.UTF_8)
-        );
-
-        setDateAndCacheHeaders(res, pathString);
-        setContentTypeHeader(res, pathString);
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
-        if (FILE_MEMORY_CACHING) stringCache.put(req.getUri(), new cachedStringFile(req.getUri(), content));
+        // big files are streamed from disk, only small ones go to memory cache
+        if (meta.size >= ZERO_COPY_THRESHOLD_BYTES) {
+            sendFile(ctx, req, meta);
+            return;
+        }
 
-        return res;
-    }
-    private HttpResponse cssResponse(HttpRequest req, Router<String> router, String pathString) {
-        return stringFileResponse(req, router, pathString);
-    }
-    private HttpResponse jsResponse(HttpRequest req, Router<String> router, String pathString) {
-        return stringFileResponse(req, router, pathString);
+        switch (route.kind) {
+            case IMAGE:
+                // public/*.jpg *.png
+                imgResponse(ctx, req, route.pathString);
+                break;
+            case TEXT:
+                // public/*.js *.css
+                stringFileResponse(ctx, req, route.pathString);
+                break;
+            default:
+                // public/*.*
+                if (EARLY_HINTS && meta.earlyHints != null) {
+                    writeEarlyHints(ctx, req, meta);
+                }
+                htmlResponse(ctx, req, route.pathString);
+        }
     }
-    private HttpResponse htmlResponse(HttpRequest req, Router<String> router) {
 
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
-        StringBuilder pathToFileSB = new StringBuilder();
-        pathToFileSB.append(PUBLIC_DIR);
+    private void bundleResponse(ChannelHandlerContext ctx, HttpRequest req, Map<String, List<String>> params) {
+        // 400 if not exactly one files param
+        List<String> files = params.get("files");
+        if (files == null || files.size() != 1 || params.size() != 1) {
+            flushResponse(ctx, req, invalidQueryParams());
+            return;
+        }
+        String key = Bundles.KEY_PREFIX + files.get(0);
+        Bundles.Bundle bundle = bundles.get(key);
+
+        // 304 for the bundle version, 404 if a file is not there or can not be bundled
+        HttpResponse try304 = checkNotModifiedHeaderEtagAndRespond304(req, bundle == null ? null : bundle.meta);
+        if (try304 != null) {
+            flushResponse(ctx, req, try304);
+            return;
+        }
+        cachedFileResponse(ctx, req, key, bundleLoader, CharsetUtil.UTF_8);
+    }
 
-        if (routeResult.pathParams().isEmpty()) {
-            pathToFileSB.append("index.html");
-        } else {
-            Map<String, String> paramMap = (Map<String, String>) routeResult.pathParams();
-            String paramFirst = paramMap.get("id");
-            pathToFileSB.append(paramFirst);
-        }
-
-        String content = null;
-        content = checkStringContentInCache(req, stringCache);
-        if (content == null) {
-            content = readStringFile(pathToFileSB.toString());
-            // 404 File Not Found
-            if (content == null) {
-                return FileNotFound();
-            }
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // one flush (one writev / sendfile run) for all responses to the requests of this read
+        if (FLUSH_CONSOLIDATION) {
+            ctx.flush();
         }
+        super.channelReadComplete(ctx);
+    }
 
+
+    private void stringFileResponse(ChannelHandlerContext ctx, HttpRequest req, String pathString) {
+        cachedFileResponse(ctx, req, pathString, binaryFileLoader, CharsetUtil.UTF_8);
+    }
+    private void htmlResponse(ChannelHandlerContext ctx, HttpRequest req, String pathString) {
         boolean isCharsetUSASCII = req.headers().contains("Accept-Charset", "US-ASCII", true);
 
-        FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content.toString(), isCharsetUSASCII? CharsetUtil.US_ASCII : CharsetUtil.UTF_8)
-        );
+        cachedFileResponse(ctx, req, pathString, textFileLoader,
+                isCharsetUSASCII ? CharsetUtil.US_ASCII : CharsetUtil.UTF_8);
+    }
+    private void imgResponse(ChannelHandlerContext ctx, HttpRequest req, String pathString) {
+        cachedFileResponse(ctx, req, pathString, binaryFileLoader, CharsetUtil.UTF_8);
+    }
 
+    // cache hit is answered right here on the event loop, a miss is read from disk on fileReads
+    // and answered back on the event loop of the channel when the file is loaded
+    private void cachedFileResponse(final ChannelHandlerContext ctx, final HttpRequest req, final String pathString,
+                                    final FileCache.Loader<CachedFile> loader, final Charset charset) {
+        CachedFile file = FILE_MEMORY_CACHING ? fileCache.getIfPresent(pathString) : null;
+        if (file != null && file.meta() != currentMeta(pathString)) {
+            // file changed after it was cached
+            file.release();
+            fileCache.invalidate(pathString);
+            file = null;
+        }
+        if (file != null) {
+            flushResponse(ctx, req, fileResponse(req, file, charset));
+            return;
+        }
 
-        setDateAndCacheHeaders(res, pathToFileSB.toString());
-        setContentTypeHeader(res, pathToFileSB.toString());
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        Waiting waiting = ctx.channel().attr(WAITING).get();
+        if (waiting == null) {
+            waiting = new Waiting();
+            ctx.channel().attr(WAITING).set(waiting);
+        }
+        // stop reading from the socket until this response is written, pipelined requests wait in waiting
+        waiting.reading = true;
+        ctx.channel().config().setAutoRead(false);
+
+        Future<CachedFile> read = fileReads.submit(ctx.executor(), new Callable<CachedFile>() {
+            @Override
+            public CachedFile call() throws IOException {
+                return loadFile(pathString, loader);
+            }
+        });
+        // 503 read queue is full
+        if (read == null) {
+            waiting.reading = false;
+            ctx.channel().config().setAutoRead(true);
+            flushResponse(ctx, req, SERVICE_UNAVAILABLE.retainedDuplicate());
+            return;
+        }
 
-        if (FILE_MEMORY_CACHING) stringCache.put(req.getUri(), new cachedStringFile(req.getUri(), content));
-        return res;
+        read.addListener(new FutureListener<CachedFile>() {
+            @Override
+            public void operationComplete(Future<CachedFile> future) {
+                HttpResponse res;
+                if (!future.isSuccess()) {
+                    future.cause().printStackTrace();
+                    res = FileNotFound();
+                } else if (future.getNow() == null) {
+                    res = FileNotFound();
+                } else {
+                    res = fileResponse(req, future.getNow(), charset);
+                }
+                flushResponse(ctx, req, res);
+                resume(ctx);
+            }
+        });
     }
-    private HttpResponse imgResponse(HttpRequest req, Router<String> router, String pathString) {
 
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
+    // runs on fileReads, never on an event loop
+    private CachedFile loadFile(String pathString, FileCache.Loader<CachedFile> loader) throws IOException {
+        CachedFile file = FILE_MEMORY_CACHING ? fileCache.get(pathString, loader) : loader.load(pathString);
+        if (file != null && file.meta() != currentMeta(pathString)) {
+            // file changed while it was loading
+            file.release();
+            fileCache.invalidate(pathString);
+            file = FILE_MEMORY_CACHING ? fileCache.get(pathString, loader) : loader.load(pathString);
+        }
+        return file;
+    }
 
-        byte[] content = null;
-        content = checkByteArrayContentInCache(req, byteCache);
-        if (content == null) {
+    // version a cache entry has to be of: the file in the index, or the bundle of the current versions of its files
+    private FileIndex.Entry currentMeta(String key) {
+        if (key.startsWith(Bundles.KEY_PREFIX)) {
+            Bundles.Bundle bundle = bundles.get(key);
+            return bundle == null ? null : bundle.meta;
+        }
+        return fileIndex.get(key);
+    }
+
+    // file read is answered, requests that came in meanwhile are handled in order until one has to wait again
+    private void resume(ChannelHandlerContext ctx) {
+        Waiting waiting = ctx.channel().attr(WAITING).get();
+        waiting.reading = false;
+        HttpRequest next;
+        while (!waiting.reading && (next = waiting.requests.poll()) != null) {
             try {
-                content = Files.readAllBytes(Paths.get(pathString));
-            } catch (NoSuchFileException e) {
-                return FileNotFound();
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (ctx.channel().isActive()) {
+                    handleRequest(ctx, next);
+                }
+            } finally {
+                ReferenceCountUtil.release(next);
             }
         }
+        // not in channelRead, channelReadComplete does not flush this
+        ctx.flush();
+        if (!waiting.reading) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
 
-        FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content)
-        );
-
-        setContentTypeHeader(res, pathString);
-        setDateAndCacheHeaders(res, pathString);
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
-        if (FILE_MEMORY_CACHING) byteCache.put(req.getUri(), new cachedByteArray(req.getUri(), content));
-
-        return res;
+    // response for a file, the file reference is released
+    private HttpResponse fileResponse(HttpRequest req, CachedFile file, Charset charset) {
+        try {
+            HttpResponse res;
+            if (req.headers().contains(HttpHeaderNames.RANGE)) {
+                // ranges are served from the identity encoded body
+                CachedFile.Variant variant = file.variant(charset, null);
+                List<ByteRange> ranges = ByteRange.parse(req, variant.length(), variant.headers());
+                if (ranges == null) {
+                    res = variant.newResponse();
+                } else if (ranges.isEmpty()) {
+                    return ByteRange.notSatisfiable(variant.length());
+                } else {
+                    res = variant.newPartialResponse(ranges);
+                }
+            } else {
+                String acceptEncoding = req.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+                res = file.variant(charset, acceptEncoding).newResponse();
+            }
+            setDateAndCacheHeaders(res);
+            return res;
+        } finally {
+            file.release();
+        }
     }
 
-    public HttpResponse checkNotModifiedHeaderEtagAndRespond304(HttpRequest req, String pathToFile) {
+    /** @param meta file from the index, null if there is no such file */
+    public HttpResponse checkNotModifiedHeaderEtagAndRespond304(HttpRequest req, FileIndex.Entry meta) {
 
-        String ifModifiedSince = req.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
-        String ifNoneMatch = req.headers().get(HttpHeaders.Names.IF_NONE_MATCH);
+        String ifModifiedSince = req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        String ifNoneMatch = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
 
-        File file = new File("public/" + pathToFile);
-        if (file.isHidden() || !file.exists()) {
+        if (meta == null) {
             return FileNotFound();
         }
 
-        Date fileModifDate = new Date(file.lastModified());
-
-        SimpleDateFormat gmtDateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        gmtDateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-        String ifMatchFileLastModifString = gmtDateFormatter.format(fileModifDate);
-
-        String fileEtag = null;
-        try {fileEtag = Base64.getEncoder().encodeToString(ifMatchFileLastModifString.getBytes("utf-8")).toLowerCase();} catch (UnsupportedEncodingException e) {};
-
-        // If-None-Match part
-        if (ifNoneMatch != null && !fileEtag.isEmpty()) {
-            if (ifNoneMatch.equals(fileEtag)) {
-                FullHttpResponse res = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.buffer(0)
-                );
-                return res;
-            }
+        // If-None-Match part, If-Modified-Since is ignored when it is present
+        if (ifNoneMatch != null) {
+            CharSequence etag = meta.matchingEtag(ifNoneMatch);
+            return etag != null ? notModified(meta, etag) : null;
         }
 
         // If-Modified-Since part
         if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
-            if (ifMatchFileLastModifString.equals(ifModifiedSince)) {
-                FullHttpResponse res = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.buffer(0)
-                );
-                return res;
+            if (meta.lastModifiedString.equals(ifModifiedSince)) {
+                return notModified(meta, meta.etagValue());
             }
         }
         return null;
 
     }
+    // etag of the variant the client has and the headers a 200 would have, so its copy is freshened (RFC 7232 4.1)
+    private static HttpResponse notModified(FileIndex.Entry meta, CharSequence etag) {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.buffer(0)
+        );
+        res.headers().set(ServerHeaders.ETAG, etag);
+        setDateAndCacheHeaders(res);
+        if (ContentEncoding.isCompressible(meta.pathString)) {
+            res.headers().set(ServerHeaders.VARY, ServerHeaders.ACCEPT_ENCODING);
+        }
+        return res;
+    }
     private static HttpResponse HttpMethodIsNotGet() {
         FullHttpResponse res = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED,
                 Unpooled.copiedBuffer("405 Request method is not GET", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_PLAIN);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
     }
@@ -263,8 +540,20 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
                 Unpooled.copiedBuffer("404 File not Found", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_PLAIN);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
+
+        return res;
+    }
+    private static FullHttpResponse rejection(HttpResponseStatus status, String message) {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, status,
+                Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(message, CharsetUtil.UTF_8))
+        );
+
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_PLAIN);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.RETRY_AFTER,    ServerHeaders.RETRY_AFTER_SECONDS);
 
         return res;
     }
@@ -274,8 +563,8 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
                 Unpooled.copiedBuffer("400 Bad request", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_PLAIN);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
     }
@@ -286,13 +575,13 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
                 Unpooled.copiedBuffer("<html><body><a href='public/index.html'>index.html</a></body></html>", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/html");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_HTML);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
     }
     private static HttpResponse createResponse(HttpRequest req, Router<String> router) {
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
+        RouteResult<String> routeResult = router.route(req.method(), req.uri());
 
         // Display debug info.
         //
@@ -306,15 +595,15 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
         content.append("target: " + routeResult.target() + "\n");
         content.append("pathParams: " + routeResult.pathParams() + "\n");
         content.append("queryParams: " + routeResult.queryParams() + "\n\n");
-        content.append("allowedMethods: " + router.allowedMethods(req.getUri()));
+        content.append("allowedMethods: " + router.allowedMethods(req.uri()));
 
         FullHttpResponse res = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
                 Unpooled.copiedBuffer(content.toString(), CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_PLAIN);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
     }
@@ -337,119 +626,208 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
                 Unpooled.copiedBuffer(content.toString(), CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/html");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(ServerHeaders.CONTENT_TYPE,   ServerHeaders.TEXT_HTML);
+        res.headers().set(ServerHeaders.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
 
     }
 
 
-    private static ChannelFuture flushResponse(ChannelHandlerContext ctx, HttpRequest req, HttpResponse res) {
-        if (!HttpHeaders.isKeepAlive(req)) {
-            return ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
-        } else {
-            res.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
-            return ctx.writeAndFlush(res);
+    private static ChannelFuture sendFile(ChannelHandlerContext ctx, HttpRequest req, FileIndex.Entry meta) {
+        String pathString = meta.pathString;
+        // pre-built .br/.gz file next to the original, if client accepts it; ranges are served from the original
+        boolean compressible = ContentEncoding.isCompressible(pathString);
+        String encoding = null;
+        if (compressible && !req.headers().contains(HttpHeaderNames.RANGE)) {
+            encoding = ContentEncoding.negotiate(req.headers().get(HttpHeaderNames.ACCEPT_ENCODING),
+                    meta.precompressed);
         }
-    }
+        String bodyPath = encoding == null ? pathString : ContentEncoding.siblingPath(pathString, encoding);
 
+        RandomAccessFile raf;
+        long fileLength;
+        try {
+            raf = new RandomAccessFile(bodyPath, "r");
+            fileLength = raf.length();
+        } catch (IOException e) {
+            return flushResponse(ctx, req, FileNotFound());
+        }
 
+        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        meta.setHeaders(res.headers());
+        setDateAndCacheHeaders(res);
+        res.headers().set(ServerHeaders.ACCEPT_RANGES, ServerHeaders.BYTES);
+        if (encoding != null) {
+            res.headers().set(ServerHeaders.CONTENT_ENCODING, encoding);
+            res.headers().set(ServerHeaders.ETAG, meta.etag(encoding));
+        }
+        if (compressible) {
+            res.headers().set(ServerHeaders.VARY, ServerHeaders.ACCEPT_ENCODING);
+        }
 
+        List<ByteRange> ranges = encoding == null ? ByteRange.parse(req, fileLength, res.headers()) : null;
+        if (ranges != null && ranges.isEmpty()) {
+            closeQuietly(raf);
+            return flushResponse(ctx, req, ByteRange.notSatisfiable(fileLength));
+        }
+        String contentType = res.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        if (ranges == null) {
+            HttpUtil.setContentLength(res, fileLength);
+        } else if (ranges.size() == 1) {
+            res.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+            res.headers().set(HttpHeaderNames.CONTENT_RANGE, ranges.get(0).contentRange(fileLength));
+            HttpUtil.setContentLength(res, ranges.get(0).length());
+        } else {
+            res.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, ByteRange.MULTIPART_CONTENT_TYPE);
+            HttpUtil.setContentLength(res, ByteRange.multipartLength(contentType, ranges, fileLength));
+        }
 
+        boolean keepAlive = HttpUtil.isKeepAlive(req);
+        if (keepAlive) {
+            res.headers().set(ServerHeaders.CONNECTION, ServerHeaders.KEEP_ALIVE);
+        }
+        ctx.write(res);
 
-    //hash stuff
-    private static void setDateAndCacheHeaders(HttpResponse response, String pathToFile) {
+        LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
+        try {
+            if (ranges == null) {
+                writeFileContent(ctx, raf, 0, fileLength);
+            } else if (ranges.size() == 1) {
+                writeFileContent(ctx, raf, ranges.get(0).start, ranges.get(0).length());
+            } else {
+                // every region closes its file when it is sent, so each part gets its own
+                closeQuietly(raf);
+                for (ByteRange range : ranges) {
+                    ctx.write(new DefaultHttpContent(ByteRange.partHeader(contentType, range, fileLength)));
+                    writeFileContent(ctx, new RandomAccessFile(bodyPath, "r"), range.start, range.length());
+                }
+                lastContent = new DefaultLastHttpContent(ByteRange.closeDelimiter());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(raf);
+            return ctx.close();
+        }
 
-        File fileToCache = new File(pathToFile);
+        return writeLast(ctx, req, lastContent);
+    }
 
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+    private static void writeFileContent(ChannelHandlerContext ctx, RandomAccessFile raf, long offset, long length)
+            throws IOException {
+        if (ctx.pipeline().get(SslHandler.class) == null && !(ctx.channel() instanceof Http2StreamChannel)) {
+            // zero-copy, sendfile
+            ctx.write(new DefaultFileRegion(raf.getChannel(), offset, length));
+        } else {
+            // encrypted connection or HTTP/2 DATA frames, file is read in chunks by ChunkedWriteHandler
+            ctx.write(new FileChunks(new ChunkedNioFile(raf.getChannel(), offset, length, CHUNKED_FILE_CHUNK_SIZE)));
+        }
+    }
 
-        // Date header
-        Calendar time = new GregorianCalendar();
-        response.headers().set("Date", dateFormatter.format(time.getTime()));
+    // 103 before the page, browser starts loading its css/js/images while the page is still on its way;
+    // written, not flushed, the flush of the response carries it
+    private static void writeEarlyHints(ChannelHandlerContext ctx, HttpRequest req, FileIndex.Entry meta) {
+        if (req.protocolVersion().equals(HttpVersion.HTTP_1_0)) {
+            return; // 1xx is not allowed for HTTP/1.0 clients
+        }
+        if (req.headers().contains(HttpHeaderNames.RANGE)) {
+            return; // a part of the page or 416, nothing to preload for
+        }
+        FullHttpResponse hints = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.EARLY_HINTS,
+                Unpooled.EMPTY_BUFFER);
+        hints.headers().set(ServerHeaders.LINK, meta.earlyHints);
+        ctx.write(hints);
+    }
 
-        // Add cache headers
-        time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-        response.headers().set(HttpHeaders.Names.EXPIRES, dateFormatter.format(time.getTime()));
-        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
+    /** File chunks as HttpContent, HTTP/2 stream codec takes only HTTP objects. */
+    private static final class FileChunks implements ChunkedInput<HttpContent> {
+        private final ChunkedNioFile file;
 
-        response.headers().set(HttpHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+        FileChunks(ChunkedNioFile file) {
+            this.file = file;
+        }
 
-        //SimpleDateFormat fileDateFormatter = new SimpleDateFormat(CUSTOM_DATE_FORMAT, Locale.US);
-        String lastModifiedString = dateFormatter.format(new Date(fileToCache.lastModified()));
-        try {response.headers().set(HttpHeaders.Names.ETAG, Base64.getEncoder().encodeToString(lastModifiedString.getBytes("utf-8")).toLowerCase());} catch (UnsupportedEncodingException e) {}
-    }
-    private static void setContentTypeHeader(HttpResponse response, String pathString) {
-        File file = new File(pathString);
-        MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
-        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
-    }
-    public String getExtension(String s) {
-        if (s.contains(".")) {
-            return s.split("\\.")[1];
-        } else return "";
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return file.isEndOfInput();
+        }
 
-    }
-    class cachedByteArray {
-        String uri;
-        byte[] byteArray;
-        long gotInCache;
+        @Override
+        public void close() throws Exception {
+            file.close();
+        }
 
-        public cachedByteArray(String uri, byte[] byteArray) {
-            this.uri = uri;
-            this.byteArray = byteArray;
-            gotInCache = new Date().getTime();
+        @Deprecated
+        @Override
+        public HttpContent readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
         }
-    }
-    class cachedStringFile {
-        String uri;
 
-        public cachedStringFile(String uri, String stringFile) {
-            this.uri = uri;
-            this.stringFile = stringFile;
-            gotInCache = new Date().getTime();
+        @Override
+        public HttpContent readChunk(ByteBufAllocator allocator) throws Exception {
+            ByteBuf chunk = file.readChunk(allocator);
+            return chunk == null ? null : new DefaultHttpContent(chunk);
         }
 
-        String stringFile;
-        long gotInCache;
+        @Override
+        public long length() {
+            return file.length();
+        }
 
+        @Override
+        public long progress() {
+            return file.progress();
+        }
     }
-    private String checkStringContentInCache(HttpRequest req, Map<String, cachedStringFile> stringCache) {
-        if (stringCache.containsKey(req.getUri()) && FILE_MEMORY_CACHING) {
-            if (stringCache.get(req.getUri()).gotInCache > new Date().getTime() - MEMORY_CACHE_EXPIRES_IN_MS) {
-                String content = stringCache.get(req.getUri()).stringFile;
-                return content;
-            } else { // cache got expired
-                stringCache.remove(req.getUri());
-                return null;
-            }
+
+    /** Per connection: requests that came in while a file is read for an earlier one. */
+    private static final class Waiting {
+        final ArrayDeque<HttpRequest> requests = new ArrayDeque<HttpRequest>(4);
+        boolean reading;
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // nothing to do
         }
-        return null;
     }
-    private byte[] checkByteArrayContentInCache(HttpRequest req, Map<String, cachedByteArray> byteCache) {
-        if (byteCache.containsKey(req.getUri()) && FILE_MEMORY_CACHING) {
-            if (byteCache.get(req.getUri()).gotInCache > new Date().getTime() - MEMORY_CACHE_EXPIRES_IN_MS) {
-                byte[] content = byteCache.get(req.getUri()).byteArray;
-                return content;
-            } else { // cache got expired
-                byteCache.remove(req.getUri());
-                return null;
-            }
+
+    // "flush" response: with FLUSH_CONSOLIDATION it is only written, channelReadComplete flushes
+    private static ChannelFuture flushResponse(ChannelHandlerContext ctx, HttpRequest req, HttpResponse res) {
+        if (HttpUtil.isKeepAlive(req)) {
+            res.headers().set(ServerHeaders.CONNECTION, ServerHeaders.KEEP_ALIVE);
         }
-        return null;
+        return writeLast(ctx, req, res);
     }
-    private String readStringFile(String pathString) {
-        String content = null;
-        try {
-            content = new String(Files.readAllBytes(Paths.get(pathString)));
-            return content;
-        } catch (NoSuchFileException e) {
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    // last message of a response; the connection is closed after it unless keep-alive
+    private static ChannelFuture writeLast(ChannelHandlerContext ctx, HttpRequest req, Object msg) {
+        if (!HttpUtil.isKeepAlive(req)) {
+            ctx.channel().attr(CLOSING).set(Boolean.TRUE);
+            return ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
         }
-        return content;
+        return FLUSH_CONSOLIDATION ? ctx.write(msg) : ctx.writeAndFlush(msg);
+    }
+
+
+
+
+
+    //hash stuff
+    private static void setDateAndCacheHeaders(HttpResponse response) {
+        ServerHeaders.DateHeaders dates = ServerHeaders.dates();
+        response.headers().set(ServerHeaders.DATE, dates.date);
+
+        // Add cache headers
+        response.headers().set(ServerHeaders.EXPIRES, dates.expires);
+        response.headers().set(ServerHeaders.CACHE_CONTROL, dates.cacheControl);
+    }
+    // after the last dot of the file name: app.min.js -> js, .htaccess -> htaccess, dir.d/file -> ""
+    public static String getExtension(String s) {
+        int dot = s.lastIndexOf('.');
+        return dot > s.lastIndexOf('/') ? s.substring(dot + 1) : "";
     }
 }
\ No newline at end of file
@@ -0,0 +1,457 @@
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import org.HdrHistogram.Histogram;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test: starts HttpRouterServer on a loopback port (or uses target=host:port) and drives it
+ * with keep-alive connections, a weighted mix of URIs over public/, results are written as JSON.
+ *
+ * With rate= every connection sends on a fixed schedule and latency is counted from the time the request
+ * should have been sent, so a stalled server is not hidden by the client waiting for it (coordinated omission).
+ * Without rate= connections send back to back and the corrected percentiles are estimated by HdrHistogram.
+ *
+ * java -cp nettyServer-1.0-SNAPSHOT.jar LoadGenerator connections=64 rate=20000 duration=30 out=result.json
+ */
+public class LoadGenerator {
+    public static final int DEFAULT_PORT = 18000;
+    public static final long HIGHEST_LATENCY_US = TimeUnit.MINUTES.toMicros(1);
+
+    private final String host;
+    private final int port;
+    private final boolean nativeTransport;
+    private final int connections;
+    private final long rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final String[] uris;
+    private final ByteBuf[] requests;
+
+    private final List<Stats> stats = new ArrayList<Stats>();
+    private Bootstrap bootstrap;
+    private CountDownLatch done;
+    private long measureStart;
+    private long end;
+
+    public LoadGenerator(String host, int port, boolean nativeTransport, int connections, long rate,
+                         long warmupSeconds, long durationSeconds, String[] uris, String extraHeaders) {
+        this.host = host;
+        this.port = port;
+        this.nativeTransport = nativeTransport;
+        this.connections = connections;
+        this.rate = rate;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.uris = uris;
+        // encoded once, every request is a duplicate of a shared buffer
+        this.requests = new ByteBuf[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            String request = "GET " + uris[i] + " HTTP/1.1\r\nHost: " + host + ':' + port + "\r\n" + extraHeaders + "\r\n";
+            requests[i] = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(request.getBytes(CharsetUtil.US_ASCII)));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Arguments are name=value: target connections rate warmup duration uris transport"
+                        + " acceptEncoding acceptCharset out");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        boolean nativeTransport = !"nio".equals(option(options, "transport", "epoll"));
+        String target = options.get("target");
+        HttpRouterServer server = null;
+        String host = "127.0.0.1";
+        int port = DEFAULT_PORT;
+        if (target == null) {
+            server = HttpRouterServer.start(port, port + 1, nativeTransport);
+        } else {
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        }
+
+        String extraHeaders = "";
+        if (options.containsKey("acceptEncoding")) {
+            extraHeaders += "Accept-Encoding: " + options.get("acceptEncoding") + "\r\n";
+        }
+        if (options.containsKey("acceptCharset")) {
+            extraHeaders += "Accept-Charset: " + options.get("acceptCharset") + "\r\n";
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, nativeTransport,
+                Integer.parseInt(option(options, "connections", "64")),
+                Long.parseLong(option(options, "rate", "0")),
+                Long.parseLong(option(options, "warmup", "5")),
+                Long.parseLong(option(options, "duration", "30")),
+                uriMix(options.get("uris")),
+                extraHeaders);
+        try {
+            String json = generator.run();
+            String out = options.get("out");
+            if (out == null) {
+                System.out.println(json);
+            } else {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(out), CharsetUtil.UTF_8)) {
+                    writer.write(json);
+                }
+                System.out.println("Results are written to " + out);
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @param spec "/public/index.html*4,/public/app.js" - URI with optional weight,
+     *             null for every file in public/ with weight 1
+     * @return URIs repeated by weight, a random element is a weighted pick
+     */
+    static String[] uriMix(String spec) throws IOException {
+        List<String> mix = new ArrayList<String>();
+        if (spec == null) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(HttpRouterServer.PUBLIC_DIR))) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file) && !Files.isHidden(file)) {
+                        mix.add("/" + HttpRouterServer.PUBLIC_DIR + file.getFileName());
+                    }
+                }
+            }
+        } else {
+            for (String part : spec.split(",")) {
+                int star = part.lastIndexOf('*');
+                int weight = star < 0 ? 1 : Integer.parseInt(part.substring(star + 1));
+                for (int i = 0; i < weight; i++) {
+                    mix.add(star < 0 ? part : part.substring(0, star));
+                }
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("No URIs to request");
+        }
+        return mix.toArray(new String[mix.size()]);
+    }
+
+    public String run() throws InterruptedException {
+        EventLoopGroup group;
+        Class<? extends Channel> channelClass;
+        if (nativeTransport && Epoll.isAvailable()) {
+            group = new EpollEventLoopGroup();
+            channelClass = EpollSocketChannel.class;
+        } else {
+            group = new NioEventLoopGroup();
+            channelClass = NioSocketChannel.class;
+        }
+
+        try {
+            bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(channelClass)
+                    .option(ChannelOption.TCP_NODELAY, Boolean.TRUE);
+
+            done = new CountDownLatch(connections);
+            long start = System.nanoTime();
+            measureStart = start + warmupNanos;
+            end = measureStart + durationNanos;
+            long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+            for (int i = 0; i < connections; i++) {
+                // schedules of connections are spread over one interval, not all at once
+                Stats slot = new Stats(interval, start + interval * i / connections);
+                stats.add(slot);
+                connect(slot);
+            }
+
+            if (!done.await(TimeUnit.NANOSECONDS.toSeconds(end - System.nanoTime()) + 10, TimeUnit.SECONDS)) {
+                System.err.println(done.getCount() + " connections did not finish in time");
+            }
+        } finally {
+            // after shutdown every event loop has stopped writing to its Stats
+            group.shutdownGracefully().sync();
+        }
+        return toJson();
+    }
+
+    private void connect(final Stats slot) {
+        bootstrap.clone()
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpResponseDecoder(), new Connection(slot));
+                    }
+                })
+                .connect(host, port)
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (!future.isSuccess()) {
+                            slot.ioErrors++;
+                            if (System.nanoTime() < end) {
+                                bootstrap.config().group().schedule(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        connect(slot);
+                                    }
+                                }, 100, TimeUnit.MILLISECONDS);
+                            } else {
+                                done.countDown();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /** Counters of one connection slot, touched only by its event loop; survives reconnects. */
+    private static final class Stats {
+        final long interval;
+        long intendedStart;
+        final Histogram latency = new Histogram(HIGHEST_LATENCY_US, 3);
+        final Histogram uncorrectedLatency = new Histogram(HIGHEST_LATENCY_US, 3);
+        final Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+        long bytes;
+        long ioErrors;
+        long unexpectedResponses;
+
+        Stats(long interval, long intendedStart) {
+            this.interval = interval;
+            this.intendedStart = intendedStart;
+        }
+    }
+
+    private final class Connection extends SimpleChannelInboundHandler<HttpObject> {
+        private final Stats slot;
+        private long sentAt;
+        private int status;
+        private boolean inFlight;
+        private boolean finished;
+
+        Connection(Stats slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            sendWhenDue(ctx, System.nanoTime());
+        }
+
+        private void sendWhenDue(final ChannelHandlerContext ctx, long now) {
+            if (slot.interval == 0 || slot.intendedStart <= now) {
+                send(ctx, now);
+            } else {
+                ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(ctx, System.nanoTime());
+                    }
+                }, slot.intendedStart - now, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void send(ChannelHandlerContext ctx, long now) {
+            if (slot.interval == 0) {
+                slot.intendedStart = now;
+            }
+            sentAt = now;
+            status = 0;
+            inFlight = true;
+            ByteBuf request = requests[ThreadLocalRandom.current().nextInt(requests.length)];
+            ctx.writeAndFlush(request.duplicate());
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (finished) {
+                return; // rest of the last read after close
+            }
+            if (msg instanceof HttpResponse) {
+                status = ((HttpResponse) msg).status().code();
+            }
+            if (msg instanceof HttpContent) {
+                slot.bytes += ((HttpContent) msg).content().readableBytes();
+            }
+            if (!(msg instanceof LastHttpContent) || status < 200) {
+                return; // 103 Early Hints ends with an empty last content, the final response follows
+            }
+            if (!inFlight) {
+                // response nobody asked for, e.g. a second response to one request
+                slot.unexpectedResponses++;
+                return;
+            }
+
+            long now = System.nanoTime();
+            inFlight = false;
+            if (slot.intendedStart >= measureStart && now <= end) {
+                // timer may fire a bit before the intended time
+                long start = Math.min(slot.intendedStart, sentAt);
+                slot.latency.recordValue(Math.min(HIGHEST_LATENCY_US, TimeUnit.NANOSECONDS.toMicros(now - start)));
+                slot.uncorrectedLatency.recordValue(Math.min(HIGHEST_LATENCY_US, TimeUnit.NANOSECONDS.toMicros(now - sentAt)));
+                Long count = slot.statuses.get(status);
+                slot.statuses.put(status, count == null ? 1 : count + 1);
+            }
+            if (now >= end) {
+                finish(ctx);
+                return;
+            }
+            slot.intendedStart += slot.interval;
+            sendWhenDue(ctx, now);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (finished) {
+                return;
+            }
+            // closed by the server or broken, the request in flight is lost
+            if (inFlight) {
+                slot.ioErrors++;
+            }
+            if (System.nanoTime() < end) {
+                slot.intendedStart += slot.interval;
+                connect(slot);
+            } else {
+                finished = true;
+                done.countDown();
+            }
+        }
+
+        private void finish(ChannelHandlerContext ctx) {
+            finished = true;
+            ctx.close();
+            done.countDown();
+        }
+    }
+
+    private String toJson() {
+        Histogram latency = new Histogram(HIGHEST_LATENCY_US, 3);
+        Histogram uncorrected = new Histogram(HIGHEST_LATENCY_US, 3);
+        Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+        long bytes = 0;
+        long ioErrors = 0;
+        long unexpectedResponses = 0;
+        for (Stats slot : stats) {
+            latency.add(slot.latency);
+            uncorrected.add(slot.uncorrectedLatency);
+            for (Map.Entry<Integer, Long> entry : slot.statuses.entrySet()) {
+                Long count = statuses.get(entry.getKey());
+                statuses.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+            }
+            bytes += slot.bytes;
+            ioErrors += slot.ioErrors;
+            unexpectedResponses += slot.unexpectedResponses;
+        }
+        if (rate == 0 && uncorrected.getTotalCount() > 0) {
+            // back to back requests: a connection would have sent one request per typical latency
+            latency = uncorrected.copyCorrectedForCoordinatedOmission(uncorrected.getValueAtPercentile(50));
+        }
+
+        long requests = uncorrected.getTotalCount();
+        long errors = ioErrors + unexpectedResponses;
+        for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+            if (entry.getKey() >= 400) {
+                errors += entry.getValue();
+            }
+        }
+        double seconds = durationNanos / 1e9;
+
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n");
+        json.append("  \"target\": \"").append(host).append(':').append(port).append("\",\n");
+        json.append("  \"transport\": \"").append(nativeTransport && Epoll.isAvailable() ? "epoll" : "nio").append("\",\n");
+        json.append("  \"connections\": ").append(connections).append(",\n");
+        json.append("  \"mode\": \"").append(rate > 0 ? "constant-rate" : "closed-loop").append("\",\n");
+        json.append("  \"targetRate\": ").append(rate).append(",\n");
+        json.append("  \"warmupSeconds\": ").append(warmupNanos / 1e9).append(",\n");
+        json.append("  \"durationSeconds\": ").append(seconds).append(",\n");
+        json.append("  \"requests\": ").append(requests).append(",\n");
+        json.append("  \"throughput\": ").append(String.format(Locale.ROOT, "%.1f", requests / seconds)).append(",\n");
+        json.append("  \"bytesPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", bytes / seconds)).append(",\n");
+        json.append("  \"errors\": ").append(errors).append(",\n");
+        json.append("  \"ioErrors\": ").append(ioErrors).append(",\n");
+        json.append("  \"unexpectedResponses\": ").append(unexpectedResponses).append(",\n");
+        json.append("  \"statuses\": {");
+        String separator = "";
+        for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"latencyUs\": ");
+        appendPercentiles(json, latency);
+        json.append(",\n  \"uncorrectedLatencyUs\": ");
+        appendPercentiles(json, uncorrected);
+        json.append(",\n  \"uris\": [");
+        separator = "";
+        for (String uri : new LinkedHashSet<String>(Arrays.asList(uris))) {
+            json.append(separator).append('"').append(uri.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            separator = ", ";
+        }
+        json.append("]\n}\n");
+        return json.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder json, Histogram histogram) {
+        json.append("{\"min\": ").append(histogram.getMinValue())
+                .append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()))
+                .append(", \"p50\": ").append(histogram.getValueAtPercentile(50))
+                .append(", \"p90\": ").append(histogram.getValueAtPercentile(90))
+                .append(", \"p99\": ").append(histogram.getValueAtPercentile(99))
+                .append(", \"p99.9\": ").append(histogram.getValueAtPercentile(99.9))
+                .append(", \"p99.99\": ").append(histogram.getValueAtPercentile(99.99))
+                .append(", \"max\": ").append(histogram.getMaxValue())
+                .append('}');
+    }
+}
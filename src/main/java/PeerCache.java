@@ -0,0 +1,420 @@
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache tier shared by instances behind a load balancer. Every file has one owner in the peer list, picked by
+ * consistent hashing (VIRTUAL_NODES points per peer on a ring, a peer that joins or leaves moves only its share).
+ * A memory cache miss asks the owner first, it has the file in memory or reads it from disk once for everybody;
+ * the file is read from disk here only if the owner does not have this version or does not answer in time.
+ *
+ * Protocol: one TCP connection to each peer, frames with a 4-byte length, answered in any order.
+ * request  - int id, byte GET, short length + path, short length + ETag
+ * response - int id, byte FOUND or NOT_FOUND, file bytes if FOUND
+ * ETag is a content hash, the same on every instance, so the bytes are of the version this instance indexed.
+ *
+ * There is no authentication: the port is bound to the address of this instance in the peer list only
+ * and connections from addresses that are not in the list are closed at once.
+ */
+public final class PeerCache {
+
+    /** What peers are answered from: memory cache and disk of this instance, never other peers. */
+    public interface Store {
+        /** Right on the event loop. @return body from memory cache, null if it is not there */
+        ByteBuf cached(String pathString, String etag);
+
+        /** On the file read pool. @return body of this version of the file, null if there is none */
+        ByteBuf read(String pathString, String etag) throws IOException;
+    }
+
+    static final byte GET = 1;
+    static final byte FOUND = 0;
+    static final byte NOT_FOUND = 1;
+    private static final int VIRTUAL_NODES = 128;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final String self;
+    private final Set<InetAddress> peerAddresses = new HashSet<InetAddress>();
+    private final long timeoutMs;
+    private final int maxFrameLength;
+    private final Store store;
+    private final FileReadExecutor reads;
+    private final TreeMap<Integer, Peer> ring = new TreeMap<Integer, Peer>(); // not changed after constructor
+    private final NioEventLoopGroup group = new NioEventLoopGroup(1, new DefaultThreadFactory("peer-cache", true));
+    private final LengthFieldPrepender prepender = new LengthFieldPrepender(4);
+    private final ChannelHandler requestHandler = new RequestHandler();
+
+    private final LongAdder fills = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder served = new LongAdder();
+
+    /**
+     * @param peers host:port of the peer port of every instance, this one too, the same list on all of them
+     * @param self this instance as it is written in peers
+     * @param maxFileSize largest file that is asked from peers, bigger ones are not cached anyway
+     * @param reads pool the peers' requests that miss memory cache are read on
+     */
+    public PeerCache(List<String> peers, String self, long timeoutMs, int maxFileSize, Store store,
+                     FileReadExecutor reads) {
+        if (!peers.contains(self)) {
+            throw new IllegalArgumentException("Peer list " + peers + " has no " + self);
+        }
+        this.self = self;
+        this.timeoutMs = timeoutMs;
+        this.maxFrameLength = maxFileSize + 1024;
+        this.store = store;
+        this.reads = reads;
+        for (String address : peers) {
+            Peer peer = new Peer(address);
+            peerAddresses.add(peer.remote.getAddress());
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(address + '#' + i), peer);
+            }
+        }
+    }
+
+    /**
+     * Listens for peers on the host of this instance in the peer list, not on every interface.
+     * Call it before warm-up, instances that start together then fill from each other.
+     */
+    public void start(int port) throws InterruptedException {
+        InetAddress host = hostAndPort(self).getAddress();
+        new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, java.lang.Boolean.TRUE)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (!peerAddresses.contains(((InetSocketAddress) ch.remoteAddress()).getAddress())) {
+                            ch.close(); // not a peer
+                            return;
+                        }
+                        ch.pipeline()
+                                .addLast(new LengthFieldBasedFrameDecoder(maxFrameLength, 0, 4, 0, 4))
+                                .addLast(prepender)
+                                .addLast(requestHandler);
+                    }
+                })
+                .bind(host, port).sync();
+        System.out.println("Peer cache: " + self + " of " + peerCount() + " peers, port " + host.getHostAddress() + ':' + port);
+    }
+
+    public void stop() {
+        group.shutdownGracefully();
+    }
+
+    /**
+     * Body of the file from its owner. Blocks for up to the timeout, so only from the file read pool or warm-up.
+     * @return null if this instance owns the file, or the owner does not have this version or does not answer
+     */
+    public ByteBuf fetch(FileIndex.Entry meta) {
+        Peer owner = owner(meta.pathString);
+        if (owner == null || meta.size > maxFrameLength - 1024) {
+            return null;
+        }
+        ByteBuf body = owner.get(meta.pathString, meta.etag);
+        if (body != null && body.readableBytes() != meta.size) {
+            body.release();
+            body = null;
+        }
+        if (body == null) {
+            misses.increment();
+        } else {
+            fills.increment();
+        }
+        return body;
+    }
+
+    /** @return owning peer, null if it is this instance */
+    private Peer owner(String pathString) {
+        Map.Entry<Integer, Peer> point = ring.ceilingEntry(hash(pathString));
+        Peer owner = (point != null ? point : ring.firstEntry()).getValue();
+        return owner.address.equals(self) ? null : owner;
+    }
+
+    // first 4 bytes of MD5, spread evenly for similar strings like "host:port#1", "host:port#2"
+    private static int hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(CharsetUtil.UTF_8));
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has MD5
+        }
+    }
+
+    // peers are resolved once, on start
+    private static InetSocketAddress hostAndPort(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Peer is not host:port: " + address);
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByName(address.substring(0, colon)),
+                    Integer.parseInt(address.substring(colon + 1)));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Unknown peer host: " + address, e);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Peer is not host:port: " + address, e);
+        }
+    }
+
+    private int peerCount() {
+        return new HashSet<Peer>(ring.values()).size();
+    }
+
+    /** Files this instance got from peers instead of disk. */
+    public long fillCount() {
+        return fills.sum();
+    }
+
+    /** Files asked from peers and read from disk after all: owner down, slow or without this version. */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /** Files this instance sent to peers. */
+    public long servedCount() {
+        return served.sum();
+    }
+
+    private static ByteBuf request(ByteBufAllocator alloc, int id, String pathString, String etag) {
+        ByteBuf request = alloc.buffer(9 + pathString.length() * 3 + etag.length());
+        request.writeInt(id).writeByte(GET);
+        writeString(request, pathString);
+        writeString(request, etag);
+        return request;
+    }
+
+    private static void writeString(ByteBuf buf, String s) {
+        int lengthIndex = buf.writerIndex();
+        buf.writeShort(0);
+        buf.setShort(lengthIndex, ByteBufUtil.writeUtf8(buf, s));
+    }
+
+    private static String readString(ByteBuf buf) {
+        int length = buf.readUnsignedShort();
+        String s = buf.toString(buf.readerIndex(), length, CharsetUtil.UTF_8);
+        buf.skipBytes(length);
+        return s;
+    }
+
+    /** One peer: its connection and the requests waiting for an answer on it. */
+    private final class Peer {
+        final String address;
+        final InetSocketAddress remote;
+        final ConcurrentHashMap<Integer, Promise<ByteBuf>> pending = new ConcurrentHashMap<Integer, Promise<ByteBuf>>();
+        final AtomicInteger ids = new AtomicInteger();
+        final Bootstrap bootstrap;
+        private Channel channel;           // guarded by this
+        private ChannelFuture connecting;  // guarded by this, connect in progress
+        private long downUntil;            // guarded by this, no connect attempts before it
+
+        Peer(String address) {
+            this.address = address;
+            this.remote = hostAndPort(address);
+            bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .remoteAddress(remote)
+                    .option(ChannelOption.TCP_NODELAY, java.lang.Boolean.TRUE)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) timeoutMs)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline()
+                                    .addLast(new LengthFieldBasedFrameDecoder(maxFrameLength, 0, 4, 0, 4))
+                                    .addLast(prepender)
+                                    .addLast(new ResponseHandler(Peer.this));
+                        }
+                    });
+        }
+
+        ByteBuf get(String pathString, String etag) {
+            Channel ch = channel();
+            if (ch == null) {
+                return null;
+            }
+            int id = ids.incrementAndGet();
+            final Promise<ByteBuf> promise = ch.eventLoop().newPromise();
+            pending.put(id, promise);
+            ch.writeAndFlush(request(ch.alloc(), id, pathString, etag)).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!future.isSuccess()) {
+                        promise.tryFailure(future.cause());
+                    }
+                }
+            });
+            // a response after the timeout finds the promise cancelled and is released by ResponseHandler
+            if (!promise.awaitUninterruptibly(timeoutMs) && promise.cancel(false)) {
+                pending.remove(id);
+                return null;
+            }
+            pending.remove(id);
+            return promise.isSuccess() ? promise.getNow() : null;
+        }
+
+        // The thread that starts a connect waits for it (up to CONNECT_TIMEOUT_MILLIS), outside the lock;
+        // others that want this peer meanwhile read from disk instead of queueing behind a slow or dead peer.
+        private Channel channel() {
+            ChannelFuture connect;
+            synchronized (this) {
+                if (channel != null && channel.isActive()) {
+                    return channel;
+                }
+                if (connecting != null || System.currentTimeMillis() < downUntil) {
+                    return null;
+                }
+                connect = bootstrap.connect();
+                connecting = connect;
+            }
+            connect.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    synchronized (Peer.this) {
+                        connecting = null;
+                        if (future.isSuccess()) {
+                            channel = future.channel();
+                        } else {
+                            downUntil = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+                        }
+                    }
+                }
+            });
+            connect.awaitUninterruptibly();
+            return connect.isSuccess() ? connect.channel() : null;
+        }
+    }
+
+    // client side, answers complete the waiting promises
+    private static final class ResponseHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        private final Peer peer;
+
+        ResponseHandler(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            Promise<ByteBuf> promise = peer.pending.remove(frame.readInt());
+            if (promise == null) {
+                return; // timed out
+            }
+            ByteBuf body = null;
+            if (frame.readByte() == FOUND) {
+                // own buffer of the exact size, a slice would keep the whole read buffer of the decoder
+                int length = frame.readableBytes();
+                body = PooledByteBufAllocator.DEFAULT.directBuffer(length, length).writeBytes(frame);
+            }
+            if (!promise.trySuccess(body) && body != null) {
+                body.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            for (Promise<ByteBuf> promise : peer.pending.values()) {
+                promise.tryFailure(new ClosedChannelException());
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close(); // waiting requests fail and go to disk, next request reconnects
+        }
+    }
+
+    // server side, memory cache hits are answered on the event loop, the rest is read on the file read pool
+    @ChannelHandler.Sharable
+    private final class RequestHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, ByteBuf frame) {
+            final int id = frame.readInt();
+            if (frame.readByte() != GET) {
+                ctx.close();
+                return;
+            }
+            final String pathString = readString(frame);
+            final String etag = readString(frame);
+
+            ByteBuf body = store.cached(pathString, etag);
+            if (body != null) {
+                respond(ctx, id, body);
+                return;
+            }
+            Future<ByteBuf> read = reads.submit(ctx.executor(), new Callable<ByteBuf>() {
+                @Override
+                public ByteBuf call() throws IOException {
+                    return store.read(pathString, etag);
+                }
+            });
+            if (read == null) {
+                respond(ctx, id, null); // read queue is full, the peer reads the file itself
+                return;
+            }
+            read.addListener(new FutureListener<ByteBuf>() {
+                @Override
+                public void operationComplete(Future<ByteBuf> future) {
+                    respond(ctx, id, future.isSuccess() ? future.getNow() : null);
+                }
+            });
+        }
+
+        // body is released after it is written
+        private void respond(ChannelHandlerContext ctx, int id, ByteBuf body) {
+            ByteBuf header = ctx.alloc().buffer(5).writeInt(id).writeByte(body == null ? NOT_FOUND : FOUND);
+            if (body == null) {
+                ctx.writeAndFlush(header);
+                return;
+            }
+            served.increment();
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(header, body));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
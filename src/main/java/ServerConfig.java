@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Server settings from a properties file and system properties, a system property wins over the file:
+ * java -Dconfig=server.properties -Dserver.port=8080 HttpRouterServer
+ * Keys are the constants of HttpRouterServer in lower case with dots (PORT - server.port,
+ * MEMORY_CACHE_MAX_BYTES - server.memory.cache.max.bytes), a missing key keeps the default.
+ *
+ * The file is checked for changes while the server runs. RELOADABLE keys are applied to the running server
+ * without touching connections, a change of any other key is only reported, it needs a restart.
+ */
+public final class ServerConfig {
+
+    public interface Listener {
+        /** New settings; an exception keeps the old ones and is reported. */
+        void reloaded(ServerConfig config);
+    }
+
+    public static final String FILE_PROPERTY = "config";
+    public static final String DEFAULT_FILE = "server.properties";
+    public static final String KEY_PREFIX = "server.";
+
+    public static final String MEMORY_CACHE_MAX_BYTES = "server.memory.cache.max.bytes";
+    public static final String MEMORY_CACHE_EXPIRES_IN_MS = "server.memory.cache.expires.in.ms";
+    public static final String HTTP_CACHE_SECONDS = "server.http.cache.seconds";
+    public static final String MAX_CONNECTIONS_PER_IP = "server.max.connections.per.ip";
+    public static final String REQUESTS_PER_SECOND_PER_IP = "server.requests.per.second.per.ip";
+    public static final String REQUEST_BURST_PER_IP = "server.request.burst.per.ip";
+    public static final Set<String> RELOADABLE = new TreeSet<String>(Arrays.asList(
+            MEMORY_CACHE_MAX_BYTES, MEMORY_CACHE_EXPIRES_IN_MS, HTTP_CACHE_SECONDS));
+
+    // ClientLimiter divides by the rate, 0 is reported with its key instead of as an ArithmeticException
+    private static final String[] POSITIVE = {MAX_CONNECTIONS_PER_IP, REQUESTS_PER_SECOND_PER_IP, REQUEST_BURST_PER_IP};
+
+    // PooledByteBufAllocator reads its settings from system properties once, when it is first used
+    private static final String[][] ALLOCATOR_PROPERTIES = {
+            {"server.allocator.type", "io.netty.allocator.type"}, // pooled or unpooled
+            {"server.allocator.direct.arenas", "io.netty.allocator.numDirectArenas"},
+            {"server.allocator.heap.arenas", "io.netty.allocator.numHeapArenas"},
+            {"server.allocator.page.size", "io.netty.allocator.pageSize"},
+            {"server.allocator.max.order", "io.netty.allocator.maxOrder"}, // chunk size = page size << max order
+            {"server.allocator.small.cache.size", "io.netty.allocator.smallCacheSize"},
+            {"server.allocator.normal.cache.size", "io.netty.allocator.normalCacheSize"},
+            {"server.allocator.use.cache.for.all.threads", "io.netty.allocator.useCacheForAllThreads"},
+    };
+
+    private final Path file;
+    private final Properties properties;
+    private final FileTime fileModified; // null if there is no file
+    private volatile boolean watching;
+
+    private ServerConfig(Path file, Properties properties, FileTime fileModified) {
+        this.file = file;
+        this.properties = properties;
+        this.fileModified = fileModified;
+    }
+
+    /**
+     * Reads the file named by -Dconfig (server.properties if not set, it may be missing) and system properties,
+     * and passes allocator settings on to netty, so it has to run before the first buffer is allocated.
+     * @throws IllegalArgumentException if a POSITIVE key is 0 or less
+     */
+    public static ServerConfig load() {
+        Path file = Paths.get(System.getProperty(FILE_PROPERTY, DEFAULT_FILE));
+        ServerConfig config;
+        try {
+            config = read(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not read config " + file.toAbsolutePath(), e);
+        }
+        for (String key : POSITIVE) {
+            String value = config.getString(key, null);
+            if (value != null && config.getLong(key, 1) < 1) {
+                throw new IllegalArgumentException(key + " must be 1 or more: " + value);
+            }
+        }
+        for (String[] property : ALLOCATOR_PROPERTIES) {
+            String value = config.getString(property[0], null);
+            if (value != null && System.getProperty(property[1]) == null) {
+                System.setProperty(property[1], value);
+            }
+        }
+        return config;
+    }
+
+    private static ServerConfig read(Path file) throws IOException {
+        Properties properties = new Properties();
+        FileTime modified = null;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            modified = Files.getLastModifiedTime(file);
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            // defaults and system properties only
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(KEY_PREFIX)) {
+                properties.setProperty(key, System.getProperty(key));
+            }
+        }
+        return new ServerConfig(file, properties, modified);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not an int: " + value);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a long: " + value);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException(key + " is not true or false: " + value);
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Checks the file for changes every intervalMs on a daemon thread, until stopWatching().
+     * Listener is called on that thread with the new settings, after the keys that need a restart are reported.
+     */
+    public void watch(final long intervalMs, final Listener listener) {
+        watching = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ServerConfig current = ServerConfig.this;
+                while (watching) {
+                    try {
+                        Thread.sleep(intervalMs);
+                        FileTime modified = Files.exists(file) ? Files.getLastModifiedTime(file) : null;
+                        if (modified == null || modified.equals(current.fileModified)) {
+                            continue;
+                        }
+                        ServerConfig next = read(file);
+                        Set<String> restart = current.changedKeys(next);
+                        restart.removeAll(RELOADABLE);
+                        if (!restart.isEmpty()) {
+                            System.err.println("Config " + file + ": restart to apply " + restart);
+                        }
+                        listener.reloaded(next);
+                        current = next;
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        System.err.println("Config " + file + " is not applied: " + e);
+                        // the same version of the file is not tried again
+                        try {
+                            current = new ServerConfig(file, current.properties, Files.getLastModifiedTime(file));
+                        } catch (IOException ignored) {
+                            // deleted meanwhile
+                        }
+                    }
+                }
+            }
+        }, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stopWatching() {
+        watching = false;
+    }
+
+    private Set<String> changedKeys(ServerConfig other) {
+        Set<String> changed = new TreeSet<String>();
+        Set<String> keys = new TreeSet<String>(properties.stringPropertyNames());
+        keys.addAll(other.properties.stringPropertyNames());
+        for (String key : keys) {
+            String value = getString(key, null);
+            if (value == null ? other.getString(key, null) != null : !value.equals(other.getString(key, null))) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    public Path file() {
+        return file;
+    }
+}
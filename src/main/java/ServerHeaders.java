@@ -0,0 +1,113 @@
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.util.AsciiString;
+
+import javax.activation.MimetypesFileTypeMap;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Header names and values built once and shared by all event loops, so setting headers on a response
+ * allocates nothing: AsciiString.cached() values are encoded to bytes once, not on every write.
+ * Date and Expires are formatted at most once per second.
+ */
+public final class ServerHeaders {
+    public static final CharSequence DATE = HttpHeaderNames.DATE;
+    public static final CharSequence EXPIRES = HttpHeaderNames.EXPIRES;
+    public static final CharSequence CACHE_CONTROL = HttpHeaderNames.CACHE_CONTROL;
+    public static final CharSequence LAST_MODIFIED = HttpHeaderNames.LAST_MODIFIED;
+    public static final CharSequence ETAG = HttpHeaderNames.ETAG;
+    public static final CharSequence CONTENT_TYPE = HttpHeaderNames.CONTENT_TYPE;
+    public static final CharSequence CONTENT_LENGTH = HttpHeaderNames.CONTENT_LENGTH;
+    public static final CharSequence CONTENT_ENCODING = HttpHeaderNames.CONTENT_ENCODING;
+    public static final CharSequence CONNECTION = HttpHeaderNames.CONNECTION;
+    public static final CharSequence ACCEPT_RANGES = HttpHeaderNames.ACCEPT_RANGES;
+    public static final CharSequence VARY = HttpHeaderNames.VARY;
+    public static final CharSequence LINK = AsciiString.cached("link");
+    public static final CharSequence RETRY_AFTER = HttpHeaderNames.RETRY_AFTER;
+
+    public static final CharSequence KEEP_ALIVE = HttpHeaderValues.KEEP_ALIVE;
+    public static final CharSequence BYTES = HttpHeaderValues.BYTES;
+    public static final CharSequence ACCEPT_ENCODING = HttpHeaderNames.ACCEPT_ENCODING;
+    public static final CharSequence TEXT_PLAIN = AsciiString.cached("text/plain");
+    public static final CharSequence TEXT_HTML = AsciiString.cached("text/html");
+    public static final CharSequence RETRY_AFTER_SECONDS = AsciiString.cached("1");
+
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter
+            .ofPattern(HttpRouterServerHandler.HTTP_DATE_FORMAT, Locale.US)
+            .withZone(ZoneId.of(HttpRouterServerHandler.HTTP_DATE_GMT_TIMEZONE));
+
+    private static final MimetypesFileTypeMap MIME_TYPES = new MimetypesFileTypeMap();
+    private static final Map<String, CharSequence> CONTENT_TYPES = new HashMap<String, CharSequence>();
+
+    static {
+        String[][] types = {
+                {"html", "text/html"}, {"htm", "text/html"}, {"txt", "text/plain"}, {"css", "text/css"},
+                {"js", "application/javascript"}, {"json", "application/json"}, {"xml", "application/xml"},
+                {"svg", "image/svg+xml"}, {"jpg", "image/jpeg"}, {"jpeg", "image/jpeg"}, {"png", "image/png"},
+                {"gif", "image/gif"}, {"ico", "image/x-icon"}, {"woff", "font/woff"}, {"woff2", "font/woff2"},
+        };
+        for (String[] type : types) {
+            CONTENT_TYPES.put(type[0], AsciiString.cached(type[1]));
+        }
+    }
+
+    private static volatile int cacheSeconds = HttpRouterServerHandler.HTTP_CACHE_SECONDS;
+    private static volatile DateHeaders dateHeaders = new DateHeaders(System.currentTimeMillis() / 1000, cacheSeconds);
+
+    private ServerHeaders() {
+    }
+
+    /** Date, Expires and Cache-Control values for the current second; new ones are formatted once per second. */
+    public static DateHeaders dates() {
+        long second = System.currentTimeMillis() / 1000;
+        DateHeaders current = dateHeaders;
+        if (current.second != second || current.cacheSeconds != cacheSeconds) {
+            // several threads may format the same second at once, any of the results is fine
+            current = new DateHeaders(second, cacheSeconds);
+            dateHeaders = current;
+        }
+        return current;
+    }
+
+    /** Cache-Control max-age and Expires of responses from now on, config reload. */
+    public static void setCacheSeconds(int seconds) {
+        cacheSeconds = seconds;
+    }
+
+    public static String formatDate(long millis) {
+        return HTTP_DATE_FORMATTER.format(Instant.ofEpochMilli(millis));
+    }
+
+    /** Content-Type by file extension, the mime.types table is asked only for unknown extensions. */
+    public static CharSequence contentType(String pathString) {
+        String extension = pathString.substring(pathString.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        CharSequence contentType = CONTENT_TYPES.get(extension);
+        if (contentType != null) {
+            return contentType;
+        }
+        synchronized (MIME_TYPES) {
+            return AsciiString.cached(MIME_TYPES.getContentType(pathString));
+        }
+    }
+
+    public static final class DateHeaders {
+        final long second;
+        final int cacheSeconds;
+        public final CharSequence date;
+        public final CharSequence expires;
+        public final CharSequence cacheControl;
+
+        DateHeaders(long second, int cacheSeconds) {
+            this.second = second;
+            this.cacheSeconds = cacheSeconds;
+            this.date = AsciiString.cached(formatDate(second * 1000));
+            this.expires = AsciiString.cached(formatDate((second + cacheSeconds) * 1000));
+            this.cacheControl = AsciiString.cached("private, max-age=" + cacheSeconds);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request, response, connection and memory cache counters, rendered in Prometheus text format by AdminHandler.
+ * Event loops only increment LongAdders (striped, no shared cache line), everything is summed on scrape.
+ */
+public final class ServerMetrics {
+    public static final String[] ROUTES = {"public", "index", "not_found", "not_modified", "bundle"};
+    static final int PUBLIC = 0;
+    static final int INDEX = 1;
+    static final int NOT_FOUND = 2;
+    static final int NOT_MODIFIED = 3;
+    static final int BUNDLE = 4;
+    private static final String PUBLIC_PATH = '/' + HttpRouterServer.PUBLIC_DIR;
+    private static final String BUNDLE_PATH = "/bundle";
+
+    // upper bounds of latency buckets, microseconds
+    private static final long[] BUCKETS_US = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000};
+
+    private final FileCache<?> fileCache;
+    private final FileReadExecutor fileReads;
+    private final ClientLimiter limiter;
+    private final PeerCache peerCache; // null without peers
+
+    private final LongAdder connectionsTotal = new LongAdder();
+    private final LongAdder connectionsActive = new LongAdder();
+    private final LongAdder connectionsKeepAlive = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder keepAliveRequests = new LongAdder();
+    private final LongAdder http2Streams = new LongAdder();
+    private final LongAdder failedResponses = new LongAdder();
+    private final LongAdder[] statuses = new LongAdder[600];
+    private final LongAdder[][] latencyBuckets = new LongAdder[ROUTES.length][BUCKETS_US.length + 1];
+    private final LongAdder[] latencySumUs = new LongAdder[ROUTES.length];
+
+    private final ChannelHandler connectionCounter = new ConnectionCounter();
+
+    public ServerMetrics(FileCache<?> fileCache, FileReadExecutor fileReads, ClientLimiter limiter, PeerCache peerCache) {
+        this.fileCache = fileCache;
+        this.fileReads = fileReads;
+        this.limiter = limiter;
+        this.peerCache = peerCache;
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+        for (int route = 0; route < ROUTES.length; route++) {
+            latencySumUs[route] = new LongAdder();
+            for (int i = 0; i < latencyBuckets[route].length; i++) {
+                latencyBuckets[route][i] = new LongAdder();
+            }
+        }
+    }
+
+    /** Sharable, first in the pipeline: connections and bytes on the wire. */
+    public ChannelHandler connectionCounter() {
+        return connectionCounter;
+    }
+
+    /**
+     * Per channel, after HttpServerCodec: requests, statuses and latency from request decoded to response sent.
+     * @param http2Stream channel is one HTTP/2 stream, not a connection
+     */
+    public ChannelHandler newRequestTimer(boolean http2Stream) {
+        return new RequestTimer(http2Stream);
+    }
+
+    void recordLatency(int route, long nanos) {
+        long us = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 0;
+        while (bucket < BUCKETS_US.length && us > BUCKETS_US[bucket]) {
+            bucket++;
+        }
+        latencyBuckets[route][bucket].increment();
+        latencySumUs[route].add(us);
+    }
+
+    /** Prometheus text exposition format 0.0.4 */
+    public String render() {
+        StringBuilder out = new StringBuilder(8192);
+
+        counter(out, "http_connections_total", "Accepted connections", connectionsTotal.sum());
+        gauge(out, "http_connections_active", "Open connections", connectionsActive.sum());
+        gauge(out, "http_connections_keepalive", "Open connections that served at least one request",
+                connectionsKeepAlive.sum());
+        counter(out, "http_received_bytes_total", "Bytes read from connections", bytesRead.sum());
+        counter(out, "http_sent_bytes_total", "Bytes written to connections, headers included", bytesWritten.sum());
+        counter(out, "http_requests_total", "Decoded requests", requests.sum());
+        counter(out, "http_keepalive_requests_total", "Requests on an already used connection", keepAliveRequests.sum());
+        counter(out, "http2_streams_total", "Requests received as HTTP/2 streams", http2Streams.sum());
+        counter(out, "http_failed_responses_total", "Responses that could not be written", failedResponses.sum());
+        counter(out, "http_rejected_connections_total", "Connections closed with 503, over the per-IP cap",
+                limiter.rejectedConnectionCount());
+        counter(out, "http_rate_limited_requests_total", "Requests answered with 429, over the per-IP rate",
+                limiter.limitedRequestCount());
+        gauge(out, "http_limited_clients", "Remote addresses with limiter state", limiter.clientCount());
+
+        out.append("# HELP http_responses_total Responses by status code\n");
+        out.append("# TYPE http_responses_total counter\n");
+        for (int code = 0; code < statuses.length; code++) {
+            long count = statuses[code].sum();
+            if (count != 0) {
+                out.append("http_responses_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        out.append("# HELP http_request_duration_seconds Time from request decoded to response written\n");
+        out.append("# TYPE http_request_duration_seconds histogram\n");
+        for (int route = 0; route < ROUTES.length; route++) {
+            long cumulative = 0;
+            for (int i = 0; i < latencyBuckets[route].length; i++) {
+                cumulative += latencyBuckets[route][i].sum();
+                String le = i < BUCKETS_US.length ? seconds(BUCKETS_US[i]) : "+Inf";
+                out.append("http_request_duration_seconds_bucket{route=\"").append(ROUTES[route])
+                        .append("\",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("http_request_duration_seconds_sum{route=\"").append(ROUTES[route]).append("\"} ")
+                    .append(seconds(latencySumUs[route].sum())).append('\n');
+            out.append("http_request_duration_seconds_count{route=\"").append(ROUTES[route]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+
+        long hits = fileCache.hitCount();
+        long misses = fileCache.missCount();
+        counter(out, "file_cache_hits_total", "Memory cache hits", hits);
+        counter(out, "file_cache_misses_total", "Memory cache misses", misses);
+        gauge(out, "file_cache_hit_ratio", "Memory cache hits / lookups since start",
+                hits + misses == 0 ? "NaN" : String.format(Locale.ROOT, "%.4f", (double) hits / (hits + misses)));
+        counter(out, "file_cache_evictions_total", "Memory cache entries evicted by size or age", fileCache.evictionCount());
+        gauge(out, "file_cache_resident_bytes", "Bytes held by memory cache", fileCache.bytesResident());
+        gauge(out, "file_cache_entries", "Files in memory cache", fileCache.size());
+        counter(out, "file_reads_total", "Memory cache misses read from disk off the event loops", fileReads.readCount());
+        counter(out, "file_reads_rejected_total", "Reads rejected with 503, read queue was full", fileReads.rejectedCount());
+        gauge(out, "file_reads_queued", "Reads waiting for a file read thread", fileReads.queued());
+        if (peerCache != null) {
+            counter(out, "peer_cache_fills_total", "Memory cache misses filled from the owning peer", peerCache.fillCount());
+            counter(out, "peer_cache_misses_total", "Files asked from a peer and read from disk after all",
+                    peerCache.missCount());
+            counter(out, "peer_cache_served_total", "Files sent to peers", peerCache.servedCount());
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long us) {
+        return String.format(Locale.ROOT, "%.6f", us / 1e6);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        metric(out, name, "counter", help, String.valueOf(value));
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, Object value) {
+        metric(out, name, "gauge", help, String.valueOf(value));
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, String value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    @ChannelHandler.Sharable
+    private final class ConnectionCounter extends ChannelDuplexHandler {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            connectionsTotal.increment();
+            connectionsActive.increment();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            connectionsActive.decrement();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof ByteBuf) {
+                bytesRead.add(((ByteBuf) msg).readableBytes());
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf) {
+                bytesWritten.add(((ByteBuf) msg).readableBytes());
+            } else if (msg instanceof FileRegion) {
+                bytesWritten.add(((FileRegion) msg).count());
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    /**
+     * Responses go out in request order, so pending requests are a queue: a response header takes the route
+     * of the oldest request without one, a completed last content write records latency of the oldest pending.
+     * Start times are kept in a ring of primitives and one listener is reused, nothing is allocated per request.
+     */
+    private final class RequestTimer extends ChannelDuplexHandler implements ChannelFutureListener {
+        private long[] starts = new long[8];
+        private int[] routes = new int[8];
+        private int head;      // oldest request whose response is not written completely
+        private int responded; // oldest request without response header
+        private int tail;      // next request
+        private final boolean http2Stream;
+        private boolean keepAlive;
+
+        RequestTimer(boolean http2Stream) {
+            this.http2Stream = http2Stream;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                requests.increment();
+                if (http2Stream) {
+                    http2Streams.increment();
+                } else if (keepAlive) {
+                    keepAliveRequests.increment();
+                }
+                if (tail - head == starts.length) {
+                    grow();
+                }
+                int i = tail++ & (starts.length - 1);
+                starts[i] = System.nanoTime();
+                routes[i] = route(((HttpRequest) msg).uri());
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        // a guess by URI, write() corrects it by status: 304 is not_modified, 404 not_found whatever the URI;
+        // an unknown URI gets the blank page of / with 200, so it is index
+        private int route(String uri) {
+            if (uri.equals(BUNDLE_PATH) || uri.startsWith(BUNDLE_PATH + '?')) {
+                return BUNDLE;
+            }
+            return uri.startsWith(PUBLIC_PATH) && !uri.equals(PUBLIC_PATH) ? PUBLIC : INDEX;
+        }
+
+        private void grow() {
+            long[] newStarts = new long[starts.length * 2];
+            int[] newRoutes = new int[routes.length * 2];
+            for (int i = head; i != tail; i++) {
+                newStarts[i & (newStarts.length - 1)] = starts[i & (starts.length - 1)];
+                newRoutes[i & (newRoutes.length - 1)] = routes[i & (routes.length - 1)];
+            }
+            starts = newStarts;
+            routes = newRoutes;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse) {
+                int code = ((HttpResponse) msg).status().code();
+                statuses[code >= 0 && code < statuses.length ? code : 0].increment();
+                if (code < 200) {
+                    // 103 Early Hints, the final response follows
+                    super.write(ctx, msg, promise);
+                    return;
+                }
+                if (responded != tail) {
+                    int i = responded++ & (starts.length - 1);
+                    if (code == 304) {
+                        routes[i] = NOT_MODIFIED;
+                    } else if (code == 404) {
+                        routes[i] = NOT_FOUND;
+                    }
+                }
+            }
+            if (msg instanceof LastHttpContent && head != responded) {
+                promise.addListener(this);
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        // last content of the oldest pending response is written
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            complete(future.isSuccess());
+        }
+
+        private void complete(boolean success) {
+            if (head == responded) {
+                return;
+            }
+            int i = head++ & (starts.length - 1);
+            if (success) {
+                recordLatency(routes[i], System.nanoTime() - starts[i]);
+                if (!keepAlive && !http2Stream) {
+                    keepAlive = true;
+                    connectionsKeepAlive.increment();
+                }
+            } else {
+                failedResponses.increment();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (keepAlive) {
+                connectionsKeepAlive.decrement();
+            }
+            super.channelInactive(ctx);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exact-match table of request URIs of indexed files, "/public/app.js" -> route, kept current by a FileIndex
+ * listener. A known file is resolved with one hash lookup of the raw URI: no netty-router, no path params,
+ * no extension parsing per request. Anything else (query string, encoded names, unknown paths) misses
+ * and goes to the router.
+ */
+public final class StaticRoutes {
+
+    /** How a file is answered, picked once per file by extension. */
+    public enum Kind {
+        /** jpg, png */
+        IMAGE,
+        /** js, css */
+        TEXT,
+        /** everything else, Accept-Charset is honoured and html gets Early Hints */
+        HTML
+    }
+
+    public static final class Route {
+        /** key of FileIndex, e.g. public/app.js */
+        public final String pathString;
+        /** file name in PUBLIC_DIR, the :id of the router */
+        public final String fileName;
+        public final Kind kind;
+
+        Route(String pathString, String fileName, Kind kind) {
+            this.pathString = pathString;
+            this.fileName = fileName;
+            this.kind = kind;
+        }
+    }
+
+    private final String publicDir;
+    private final FileIndex fileIndex;
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+    public StaticRoutes(String publicDir, FileIndex fileIndex) {
+        this.publicDir = publicDir;
+        this.fileIndex = fileIndex;
+        // listener first, a file that changes while the table is filled is not lost
+        fileIndex.addListener(new FileIndex.Listener() {
+            @Override
+            public void fileChanged(String pathString) {
+                update(pathString);
+            }
+        });
+        for (FileIndex.Entry entry : fileIndex.entries()) {
+            update(entry.pathString);
+        }
+    }
+
+    /** @return route of an indexed file, or null if uri is not exactly "/" + PUBLIC_DIR + file name */
+    public Route get(String uri) {
+        return routes.get(uri);
+    }
+
+    /** Route for a file name the router matched, for names that are not in the table (encoded, not indexed). */
+    public Route route(String fileName) {
+        return new Route(publicDir + fileName, fileName, kindOf(fileName));
+    }
+
+    private void update(String pathString) {
+        if (!pathString.startsWith(publicDir)) {
+            return;
+        }
+        String uri = '/' + pathString;
+        if (fileIndex.get(pathString) == null) {
+            routes.remove(uri);
+        } else {
+            routes.put(uri, route(pathString.substring(publicDir.length())));
+        }
+    }
+
+    static Kind kindOf(String fileName) {
+        String extension = HttpRouterServerHandler.getExtension(fileName);
+        if (extension.equals("jpg") || extension.equals("png")) {
+            return Kind.IMAGE;
+        }
+        if (extension.equals("js") || extension.equals("css")) {
+            return Kind.TEXT;
+        }
+        return Kind.HTML;
+    }
+}